@@ -125,11 +125,14 @@ public class GenTab {
 
 						default:
 							int y = phase - 2;
+							Render render = currentChar;
+							if(null == render)
+								throw new IOException("Expecting something like '0:' to indicate a new character");
 							if(y >= h)
-								throw new IOException("Too many lines for character " + currentChar);
+								throw new IOException("Too many lines for character " + render);
 							if(line.length() > w)
-								throw new IOException("Too many pixels for character " + currentChar + " on line " + y);
-							currentChar.getPattern()[y] = line;
+								throw new IOException("Too many pixels for character " + render + " on line " + y);
+							render.getPattern()[y] = line;
 							phase++;
 							break;
 					}
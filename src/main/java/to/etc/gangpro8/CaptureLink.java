@@ -0,0 +1,72 @@
+package to.etc.gangpro8;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a link and writes all bytes received from it to a stream, so the
+ * session can later be replayed with {@link ReplayLink}.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class CaptureLink implements Link {
+	private final Link m_link;
+
+	private final OutputStream m_capture;
+
+	public CaptureLink(Link link, OutputStream capture) {
+		m_link = link;
+		m_capture = capture;
+	}
+
+	@Override
+	public String getName() {
+		return m_link.getName();
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws Exception {
+		int start = buffer.position();
+		int read = m_link.read(buffer);
+		if(read > 0)
+			m_capture.write(buffer.array(), buffer.arrayOffset() + start, read);
+		return read;
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws Exception {
+		m_link.write(data, off, len);
+	}
+
+	@Override
+	public void setRts(boolean on) throws Exception {
+		m_link.setRts(on);
+	}
+
+	@Override
+	public boolean isCts() throws Exception {
+		return m_link.isCts();
+	}
+
+	@Override
+	public void setWakeup(Runnable wakeup) {
+		m_link.setWakeup(wakeup);
+	}
+
+	@Override
+	public void close() {
+		try {
+			m_capture.close();
+		} catch(Exception x) {
+			//-- Ignore
+		} finally {
+			m_link.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return m_link.toString();
+	}
+}
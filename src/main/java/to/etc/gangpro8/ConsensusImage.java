@@ -0,0 +1,277 @@
+package to.etc.gangpro8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges multiple reads of the same (marginal) EPROM into a single
+ * majority image, without keeping a copy of every pass.
+ *
+ * The first pass is stored as the reference image. Every later pass is
+ * compared against it as the data streams in; only addresses where a pass
+ * disagrees (or where a record was lost) get per-bit vote counters. Since
+ * weak bits are rare this keeps memory at about one byte per address,
+ * regardless of the number of passes.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class ConsensusImage {
+	/** The bytes of the first pass; the majority value for all addresses not in m_votes. */
+	private byte[] m_reference = new byte[65536];
+
+	/** The #of bytes in m_reference that were filled. */
+	private int m_referenceLength;
+
+	/** Per-bit vote counters for the addresses that were not read identically on every pass. */
+	private final Map<Integer, Votes> m_votes = new TreeMap<>();
+
+	/** The #of passes completed so far. */
+	private int m_passCount;
+
+	/** The #of bytes received in the current pass. */
+	private int m_passLength;
+
+	/** The highest address + 1 seen in any pass. */
+	private int m_length;
+
+	private int m_droppedRecords;
+
+	static private final class Votes {
+		/** The #of passes that delivered a value for this address. */
+		private int m_total;
+
+		/** For every bit, the #of passes that read it as 1. */
+		private final int[] m_ones = new int[8];
+
+		void add(int value) {
+			m_total++;
+			for(int bit = 0; bit < 8; bit++) {
+				if((value & (1 << bit)) != 0)
+					m_ones[bit]++;
+			}
+		}
+
+		int majority() {
+			int value = 0;
+			for(int bit = 0; bit < 8; bit++) {
+				if(m_ones[bit] * 2 > m_total)
+					value |= 1 << bit;
+			}
+			return value;
+		}
+
+		/** Return the bits that were not read the same on all passes. */
+		int unstableBits() {
+			int bits = 0;
+			for(int bit = 0; bit < 8; bit++) {
+				int ones = m_ones[bit];
+				if(ones != 0 && ones != m_total)
+					bits |= 1 << bit;
+			}
+			return bits;
+		}
+
+		/** True when the vote for a bit was a tie, so the majority value is a guess. */
+		boolean isTied() {
+			for(int bit = 0; bit < 8; bit++) {
+				if(m_ones[bit] * 2 == m_total)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Describes an address that did not read the same on all passes.
+	 */
+	static public final class UnstableAddress {
+		private final int m_address;
+
+		private final int m_value;
+
+		private final int m_unstableBits;
+
+		private final int m_votes;
+
+		private final boolean m_tied;
+
+		UnstableAddress(int address, int value, int unstableBits, int votes, boolean tied) {
+			m_address = address;
+			m_value = value;
+			m_unstableBits = unstableBits;
+			m_votes = votes;
+			m_tied = tied;
+		}
+
+		public int getAddress() {
+			return m_address;
+		}
+
+		/** The majority value written to the image. */
+		public int getValue() {
+			return m_value;
+		}
+
+		/** Mask of the bits that flipped between passes. */
+		public int getUnstableBits() {
+			return m_unstableBits;
+		}
+
+		/** The #of passes that delivered a value for this address; less than the #of passes if records were lost. */
+		public int getVotes() {
+			return m_votes;
+		}
+
+		/** True when no pass delivered this address; the value is the filler written to the image, not data read. */
+		public boolean isMissing() {
+			return m_votes == 0;
+		}
+
+		/** True if at least one bit had as many 0 as 1 votes. */
+		public boolean isTied() {
+			return m_tied;
+		}
+
+		@Override
+		public String toString() {
+			if(isMissing())
+				return "0x" + Integer.toHexString(m_address) + ": missing in all passes, written as 0x" + Integer.toHexString(m_value);
+			return "0x" + Integer.toHexString(m_address)
+				+ ": 0x" + Integer.toHexString(m_value)
+				+ ", unstable bits 0x" + Integer.toHexString(m_unstableBits)
+				+ " (" + m_votes + " votes" + (m_tied ? ", TIED" : "") + ")";
+		}
+	}
+
+	public void startPass() {
+		m_passLength = 0;
+	}
+
+	/**
+	 * Add the data of a single (checksum verified) record to the current pass.
+	 */
+	public void vote(int address, byte[] data, int off, int len) {
+		for(int i = 0; i < len; i++) {
+			vote(address + i, data[off + i] & 0xff);
+		}
+	}
+
+	private void vote(int address, int value) {
+		if(address + 1 > m_passLength)
+			m_passLength = address + 1;
+		if(address + 1 > m_length)
+			m_length = address + 1;
+
+		if(m_passCount == 0 && address >= m_referenceLength) {
+			//-- First pass: just collect the reference image. Skipped addresses are filled with 0xff and get voted on later.
+			if(address >= m_reference.length)
+				m_reference = Arrays.copyOf(m_reference, Math.max(address + 1, m_reference.length * 2));
+			for(int a = m_referenceLength; a < address; a++) {
+				m_reference[a] = (byte) 0xff;
+				if(!m_votes.containsKey(a))
+					m_votes.put(a, new Votes());
+			}
+			m_reference[address] = (byte) value;
+			m_referenceLength = address + 1;
+			return;
+		}
+
+		Votes votes = m_votes.get(address);
+		if(null == votes) {
+			if(address < m_referenceLength && value == (m_reference[address] & 0xff))
+				return;
+			votes = createVotes(address);
+		}
+		votes.add(value);
+	}
+
+	/**
+	 * Record that a record was lost (bad checksum) in this pass; its
+	 * addresses will be marked unstable as they did not get all votes.
+	 */
+	public void drop(int address, int len) {
+		m_droppedRecords++;
+		if(address + len > m_length)
+			m_length = address + len;
+		for(int i = 0; i < len; i++) {
+			int a = address + i;
+			if(!m_votes.containsKey(a))
+				createVotes(a);
+		}
+	}
+
+	/**
+	 * Called at the end of a pass: addresses that were not delivered in
+	 * this pass lose their implicit vote.
+	 */
+	public void endPass() {
+		for(int a = m_passLength; a < m_referenceLength; a++) {
+			if(!m_votes.containsKey(a))
+				createVotes(a);
+		}
+		m_passCount++;
+	}
+
+	/**
+	 * Create the vote counters for an address that was, until now, read
+	 * identical on all previous passes.
+	 */
+	private Votes createVotes(int address) {
+		Votes votes = new Votes();
+		if(address < m_referenceLength) {
+			int ref = m_reference[address] & 0xff;
+			for(int i = 0; i < m_passCount; i++)
+				votes.add(ref);
+		}
+		m_votes.put(address, votes);
+		return votes;
+	}
+
+	public int getPassCount() {
+		return m_passCount;
+	}
+
+	public int getDroppedRecords() {
+		return m_droppedRecords;
+	}
+
+	/**
+	 * Return the majority image. Addresses that no pass delivered are 0xff;
+	 * getUnstableAddresses() reports them as missing.
+	 */
+	public byte[] getImage() {
+		byte[] image = Arrays.copyOf(m_reference, m_length);
+		for(int i = m_referenceLength; i < image.length; i++)
+			image[i] = (byte) 0xff;
+		for(Map.Entry<Integer, Votes> e : m_votes.entrySet()) {
+			image[e.getKey()] = (byte) valueOf(e.getValue());
+		}
+		return image;
+	}
+
+	/**
+	 * The value written to the image for an address with votes.
+	 */
+	static private int valueOf(Votes v) {
+		return v.m_total == 0 ? 0xff : v.majority();
+	}
+
+	/**
+	 * Return all addresses that did not read the same on every pass, or
+	 * that were missing in some passes, in address order.
+	 */
+	public List<UnstableAddress> getUnstableAddresses() {
+		List<UnstableAddress> res = new ArrayList<>();
+		for(Map.Entry<Integer, Votes> e : m_votes.entrySet()) {
+			Votes v = e.getValue();
+			int bits = v.unstableBits();
+			if(bits != 0 || v.m_total < m_passCount)
+				res.add(new UnstableAddress(e.getKey(), valueOf(v), bits, v.m_total, v.m_total > 0 && v.isTied()));
+		}
+		return res;
+	}
+}
@@ -0,0 +1,334 @@
+package to.etc.gangpro8;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Receives the content of the MASTER socket as Intel Hex, one or more
+ * times. The decoder is a state machine that is fed every character as
+ * it arrives.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 06-06-21.
+ */
+final public class DownloadEngine implements ProtocolEngine<GangPro8Programmer.ReadResult> {
+	enum HexState {
+		Colon,
+		ByteCount,
+		Address,
+		RecordType,
+		Data,
+		Checksum,
+		Eoln
+	}
+
+	private final ProgressListener m_listener;
+
+	private final int m_passes;
+
+	private int m_pass;
+
+	private int m_gibberish;
+
+	/** Set after a pass: the rest of the EOF record can arrive when the next pass has already started. */
+	private boolean m_skipEofTail;
+
+	private HexState m_state = HexState.Colon;
+
+	/** For states receiving hex data: the #of character (still) to read */
+	private int m_hexToDo;
+
+	/** For states receiving a value, the hex value collected (so far) */
+	private int m_hexValue;
+
+	/** The #of (remaining) bytes in the DATA record. */
+	private int m_recordByteCount;
+
+	/** The ADDRESS field for the data */
+	private int m_address;
+
+	private int m_expectedAddress;
+
+	/** The sum of all hex bytes received so far. */
+	private int m_lineSum;
+
+	private int m_lineNumber;
+
+	private final ByteArrayOutputStream m_baos = new ByteArrayOutputStream(65536);
+
+	/** The data bytes of the record being received; only added to the image once its checksum is OK. */
+	private final byte[] m_recordData = new byte[256];
+
+	private int m_recordLength;
+
+	/** When reading multiple passes: the image collecting the votes of all passes. */
+	private final ConsensusImage m_consensus;
+
+	private GangPro8Programmer.ReadResult m_result;
+
+	public DownloadEngine(ProgrammerJob job, ProgressListener listener) {
+		m_listener = listener;
+		m_passes = job.getPasses();
+		m_consensus = m_passes > 1 ? new ConsensusImage() : null;
+	}
+
+	@Override
+	public void start(long now, ProtocolOutput out) throws Exception {
+		startPass(out);
+	}
+
+	/**
+	 * Start receiving a single Intel Hex stream from the device.
+	 */
+	private void startPass(ProtocolOutput out) throws Exception {
+		m_pass++;
+		if(m_passes > 1) {
+			m_listener.message("Pass " + m_pass + " of " + m_passes + ": waiting for data from the Gangpro-8");
+			if(m_pass > 1)
+				m_listener.message("Press the SETUP key until the display says \"UPLOAD\" again");
+		} else {
+			m_listener.message("Waiting for data from the Gangpro-8");
+		}
+		m_hexToDo = 0;
+		m_hexValue = 0;
+		m_lineSum = 0;
+		m_gibberish = 0;
+		m_expectedAddress = 0;
+		m_lineNumber = 1;
+		m_state = HexState.Colon;
+		ConsensusImage consensus = m_consensus;
+		if(null != consensus)
+			consensus.startPass();
+
+		out.write("U".getBytes(StandardCharsets.UTF_8));        // Set UPLOAD mode (does not work on my device)
+		out.setRts(true);
+	}
+
+	@Override
+	public void receive(ByteBuffer data, long now, ProtocolOutput out) throws Exception {
+		while(data.hasRemaining() && !isDone()) {
+			if(accept(data.get() & 0xff)) {
+				//-- A pass is complete
+				ConsensusImage consensus = m_consensus;
+				if(null != consensus)
+					consensus.endPass();
+				if(m_pass >= m_passes) {
+					m_result = createResult();
+					return;
+				}
+				startPass(out);
+			}
+		}
+	}
+
+	private GangPro8Programmer.ReadResult createResult() {
+		ConsensusImage consensus = m_consensus;
+		if(null == consensus)
+			return new GangPro8Programmer.ReadResult(m_baos.toByteArray(), 1, 0, Collections.emptyList());
+		return new GangPro8Programmer.ReadResult(consensus.getImage(), consensus.getPassCount(), consensus.getDroppedRecords(), consensus.getUnstableAddresses());
+	}
+
+	@Override
+	public boolean isWaitingForCts() {
+		return false;
+	}
+
+	@Override
+	public void clearToSend(long now, ProtocolOutput out) {
+	}
+
+	/**
+	 * There is no timeout: the operator has to start the upload on the device.
+	 */
+	@Override
+	public long getDeadline() {
+		return NO_DEADLINE;
+	}
+
+	@Override
+	public void tick(long now, ProtocolOutput out) {
+	}
+
+	@Override
+	public boolean isDone() {
+		return m_result != null;
+	}
+
+	@Override
+	public GangPro8Programmer.ReadResult getResult() {
+		GangPro8Programmer.ReadResult result = m_result;
+		if(null == result)
+			throw new IllegalStateException("Download not complete");
+		return result;
+	}
+
+	/**
+	 * Handle a single character; returns true when the EOF record was received.
+	 */
+	private boolean accept(int c) {
+		//-- Do we need hex chars?
+		if(m_hexToDo > 0) {
+			readHexValue(c);
+			if(m_hexToDo > 0)
+				return false;
+			return valueComplete();
+		}
+
+		switch(m_state){
+			default:
+				throw new IllegalStateException("Unexpected state: " + m_state);
+
+			case Colon:
+				waitColon(c);
+				return false;
+
+			case Eoln:
+				if(c == '\r' || c == '\n') {
+					m_lineNumber++;
+					enter(HexState.Colon, 0);
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Handle the value collected for the current state; returns true when the EOF record was received.
+	 */
+	private boolean valueComplete() {
+		switch(m_state){
+			default:
+				throw new IllegalStateException("Unexpected state: " + m_state);
+
+			case ByteCount:
+				//-- Once the byte count has been read just save it, then go to address
+				if(m_hexValue > 255)
+					fail("Byte count value " + m_hexValue + " in record invalid, it must be 0 <= count <= 255");
+				m_recordByteCount = m_hexValue;
+				enter(HexState.Address, 4);
+				return false;
+
+			case Address:
+				m_address = m_hexValue;
+				enter(HexState.RecordType, 2);
+				return false;
+
+			case RecordType:
+				//-- Check the record type
+				if(m_hexValue > 0x05) {
+					fail("Invalid record type 0x" + Integer.toHexString(m_hexValue));
+				}
+				if(m_hexValue == 0x01) {
+					//-- EOF -> we're done
+					m_listener.message("All data received");
+					m_skipEofTail = true;
+					enter(HexState.Colon, 0);
+					return true;
+				}
+				if(m_hexValue == 0) {
+					if(m_recordByteCount == 0)
+						fail("Byte count value " + m_hexValue + " in record invalid, it must be 0 <= count <= 255");
+
+					if(m_address != m_expectedAddress) {
+						fail("Incorrect address: expecting 0x" + Integer.toHexString(m_expectedAddress) + " but got 0x"  + Integer.toHexString(m_address));
+					}
+
+					m_recordLength = 0;
+					enter(HexState.Data, 2);
+					return false;
+				}
+				fail("The record type " + Integer.toHexString(m_hexValue) + " is not implemented");
+				return false;
+
+			case Data:
+				//-- Got a byte of data.
+				if(m_hexValue > 255) {
+					fail("Unexpected data value 0x" + Integer.toHexString(m_hexValue));
+				}
+				m_recordData[m_recordLength++] = (byte) m_hexValue;
+				m_hexValue = 0;
+
+				if(m_expectedAddress == 0) {
+					m_listener.message("** receiving data **");
+				}
+				if((m_expectedAddress & 0xff) == 0) {
+					m_listener.progress(m_expectedAddress, -1);
+				}
+
+				m_expectedAddress++;
+				m_recordByteCount--;
+				if(m_recordByteCount > 0) {
+					enter(HexState.Data, 2);
+					return false;
+				}
+
+				//-- All DATA gotten
+				enter(HexState.Checksum, 2);
+				return false;
+
+			case Checksum:
+				//-- check sum
+				ConsensusImage consensus = m_consensus;
+				if((m_lineSum & 0xff) != 0) {
+					if(null == consensus)
+						fail("checksum error at line " + m_lineNumber + ", sum=0x" + Integer.toHexString(m_lineSum & 0xff));
+					else {
+						//-- With multiple passes just skip this record; the other passes will provide its data.
+						m_listener.message("checksum error at line " + m_lineNumber + ", skipping the record in this pass");
+						consensus.drop(m_address, m_recordLength);
+					}
+				} else if(null != consensus) {
+					consensus.vote(m_address, m_recordData, 0, m_recordLength);
+				} else {
+					m_baos.write(m_recordData, 0, m_recordLength);
+				}
+				m_lineSum = 0;
+				enter(HexState.Eoln, 0);
+				return false;
+		}
+	}
+
+	private void fail(String s) {
+		throw new MessageException(s);
+	}
+
+	private void waitColon(int c) {
+		if(c == ':') {
+			m_lineSum = 0;
+			m_skipEofTail = false;
+			enter(HexState.ByteCount, 2);
+			return;
+		}
+		if(c == '\r' || c == '\n' || m_skipEofTail) {		// Left from previous line
+			return;
+		}
+		m_gibberish++;
+		if(m_gibberish == 1) {
+			m_listener.message("Receiving something but it does not start with ':'; skipping spurious data");
+		}
+	}
+
+	private void enter(HexState state, int count) {
+		m_state = state;
+		m_hexToDo = count;
+		m_hexValue = 0;
+	}
+
+	private void readHexValue(int c) {
+		if(m_hexToDo <= 0)
+			throw new IllegalStateException("Should have hex data to read");
+		c = Character.toUpperCase(c);
+		if(c >= '0' && c <= '9') {
+			m_hexValue = (m_hexValue << 4) | (c - '0');
+		} else if(c >= 'A' && c <= 'F') {
+			m_hexValue = (m_hexValue << 4) | (c - 'A' + 10);
+		} else {
+			throw new MessageException("Invalid character 0x" + Integer.toHexString(c) + " found while expecting a hex digit (" + m_state + ")");
+		}
+		m_hexToDo--;
+		if((m_hexToDo & 0x01) == 0) {					// Every even #of chars add the just received byte to the line sum.
+			m_lineSum += (m_hexValue & 0xff);
+		}
+	}
+}
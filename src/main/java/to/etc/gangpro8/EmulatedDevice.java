@@ -0,0 +1,171 @@
+package to.etc.gangpro8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * An in-memory Gangpro-8 for testing without hardware. Writing "U" makes
+ * it send its MASTER image as Intel Hex (as if SETUP was pressed), and "T"
+ * starts programming mode where it asks for records with SOH and answers
+ * them with ACK or NAK. CTS is always raised.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class EmulatedDevice implements Link {
+	/** The max #of bytes returned by a single read, to mimic a serial port. */
+	static private final int CHUNK_SIZE = 64;
+
+	private final String m_name;
+
+	private final byte[] m_master;
+
+	private final Queue<Byte> m_output = new ArrayDeque<>();
+
+	private boolean m_programming;
+
+	/** The characters of the record being received in programming mode. */
+	private final StringBuilder m_record = new StringBuilder();
+
+	private byte[] m_programmed = new byte[0];
+
+	private int m_programmedLength;
+
+	/** When > 0, every nth record is answered with NAK. */
+	private int m_nakEvery;
+
+	private int m_recordCount;
+
+	private Runnable m_wakeup = () -> {};
+
+	public EmulatedDevice(String name, byte[] master) {
+		IntelHex.checkSize(master.length);
+		m_name = name;
+		m_master = master;
+	}
+
+	/**
+	 * Simulate a noisy line by rejecting every nth record.
+	 */
+	public synchronized void setNakEvery(int nakEvery) {
+		m_nakEvery = nakEvery;
+	}
+
+	/**
+	 * The data received in programming mode.
+	 */
+	public synchronized byte[] getProgrammed() {
+		return Arrays.copyOf(m_programmed, m_programmedLength);
+	}
+
+	@Override
+	public String getName() {
+		return m_name;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer buffer) {
+		int count = 0;
+		while(count < CHUNK_SIZE && buffer.hasRemaining() && !m_output.isEmpty()) {
+			buffer.put(m_output.remove());
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized void write(byte[] data, int off, int len) {
+		for(int i = 0; i < len; i++) {
+			int c = data[off + i] & 0xff;
+			if(m_programming && m_record.length() > 0)
+				programChar(c);
+			else if(c == 'U') {
+				m_programming = false;
+				sendMaster();
+			} else if(c == 'T') {
+				m_programming = true;                        // A new blank
+				m_programmedLength = 0;
+				m_output.add((byte) 0x01);                    // SOH: ask for the first record
+			} else if(m_programming)
+				programChar(c);
+		}
+		if(!m_output.isEmpty())
+			m_wakeup.run();
+	}
+
+	@Override
+	public synchronized void setWakeup(Runnable wakeup) {
+		m_wakeup = wakeup;
+	}
+
+	private void sendMaster() {
+		byte[] master = m_master;
+		for(int off = 0; off < master.length; off += 16) {
+			queue(IntelHex.toRecord(master, off, Math.min(16, master.length - off), off) + "\r\n");
+		}
+		queue(IntelHex.EOF_RECORD + "\r\n");
+	}
+
+	private void queue(String s) {
+		for(byte b : s.getBytes(StandardCharsets.UTF_8))
+			m_output.add(b);
+	}
+
+	private void programChar(int c) {
+		if(m_record.length() == 0 && c != ':')
+			return;                                        // NUL NUL and spurious data
+		m_record.append((char) c);
+		if(m_record.length() < 3)
+			return;
+		int count = Integer.parseInt(m_record.substring(1, 3), 16);
+		if(m_record.length() < 11 + count * 2)
+			return;
+
+		//-- Record complete
+		String record = m_record.toString();
+		m_record.setLength(0);
+		m_recordCount++;
+		if(m_nakEvery > 0 && m_recordCount % m_nakEvery == 0) {
+			m_output.add((byte) 0x15);
+			return;
+		}
+		int sum = 0;
+		byte[] bytes = new byte[count + 5];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(record.substring(1 + i * 2, 3 + i * 2), 16);
+			sum += bytes[i] & 0xff;
+		}
+		if((sum & 0xff) != 0) {
+			m_output.add((byte) 0x15);                    // NAK
+			return;
+		}
+		int address = ((bytes[1] & 0xff) << 8) | (bytes[2] & 0xff);
+		if(address + count > m_programmed.length)
+			m_programmed = Arrays.copyOf(m_programmed, Math.max(address + count, m_programmed.length * 2));
+		System.arraycopy(bytes, 4, m_programmed, address, count);
+		m_programmedLength = Math.max(m_programmedLength, address + count);
+		m_output.add((byte) 0x06);                        // ACK
+		m_output.add((byte) 0x01);                        // SOH: ask for the next one
+	}
+
+	@Override
+	public void setRts(boolean on) {
+	}
+
+	@Override
+	public boolean isCts() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return "emulated " + m_name;
+	}
+}
@@ -1,36 +1,33 @@
 package to.etc.gangpro8;
 
-import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortInvalidPortException;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
+ * The command line interface, using {@link GangPro8Programmer} to do the work.
+ *
  * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
  * Created on 06-06-21.
  */
 public class GangPro8 {
-	private static final long SOH_TIMEOUT = 10 * 1000;
-
-	private static final long ACK_TIMEOUT = 10 * 1000;
-
-	private static final long CTS_TIMEOUT = 5 * 1000;
-
-	@Option(name = "-p", aliases = {"--serial"}, usage = "The serial port to use, use something like /dev/ttyUSB0 on Linux", required = true)
+	@Option(name = "-p", aliases = {"--serial"}, usage = "The serial port to use, use something like /dev/ttyUSB0 on Linux. When omitted the port found by --discover is used")
 	private String m_serialPort;
 
 	@Option(name = "-r", aliases = {"--read"}, usage = "Read the content of the MASTER eprom socket to a file")
@@ -39,13 +36,64 @@ public class GangPro8 {
 	@Option(name = "-w", aliases = {"--write"}, usage = "Write the specified file to the EPROM")
 	private File m_writeFile;
 
+	@Option(name = "-v", aliases = {"--verify"}, usage = "Read the content of the MASTER eprom socket and compare it with the specified file")
+	private File m_verifyFile;
+
 	@Option(name = "-f", aliases = {"--format"}, usage = "Format for the file: either binary or intel")
 	private Format m_format = Format.binary;
 
 	@Option(name = "-b", aliases = {"--bps", "--baud"}, usage = "The bit rate for the port, defaulting to 1200 (which is the device's default)\nValid are: 1200, 2400, 4800")
-	private int m_bitRate = 1200;
+	private int m_bitRate;
+
+	@Option(name = "-t", aliases = {"--transform"}, usage = "Transformations applied to the image before --write or after --read, separated by commas:\n"
+		+ "extract:start[:length], fill:size[:value], offset:n[:value], swap, cat:file")
+	private String m_transform;
+
+	@Option(name = "-s", aliases = {"--record-size"}, usage = "For --write: the #of data bytes per record, 1..255 (default 16). With --adaptive this is the maximum size")
+	private int m_recordSize = RecordSizer.DEFAULT_SIZE;
+
+	@Option(name = "-a", aliases = {"--adaptive"}, usage = "For --write: grow or shrink the record size depending on NAKs and ACK latency")
+	private boolean m_adaptive;
+
+	@Option(name = "-d", aliases = {"--discover"}, usage = "Probe all serial ports for an attached Gangpro-8 and remember the result for later runs")
+	private boolean m_discover;
+
+	@Option(name = "-e", aliases = {"--emulate"}, usage = "Do not use a serial port but an emulated Gangpro-8 with the specified binary file as its MASTER EPROM")
+	private File m_emulateFile;
+
+	@Option(name = "-c", aliases = {"--capture"}, usage = "Save everything received from the device in the specified file, for use with --replay")
+	private File m_captureFile;
 
-	private SerialPort m_port;
+	@Option(name = "--replay", usage = "Do not use a serial port but replay the data received in an earlier --capture")
+	private File m_replayFile;
+
+	@Option(name = "-n", aliases = {"--passes"}, usage = "For --read: read the master this many times and write the majority (consensus) image. Use for marginal EPROMs with weak bits")
+	private int m_passes = 1;
+
+	@Option(name = "--copy", usage = "Copy station: read the MASTER eprom once, then program blank after blank with its content")
+	private boolean m_copy;
+
+	@Option(name = "--copies", usage = "For --copy: stop after this many chips (default: until the operator enters q)")
+	private int m_copies;
+
+	@Option(name = "--readback", usage = "For --copy: after programming each chip, move it to the MASTER socket to read it back and compare it with the master image")
+	private boolean m_readback;
+
+	/** Prints all progress on the console. */
+	static private final ProgressListener CONSOLE = new ProgressListener() {
+		@Override
+		public void message(String message) {
+			System.out.println(message);
+		}
+
+		@Override
+		public void progress(long done, long total) {
+			if(total < 0)
+				System.out.println("... at address 0x" + Long.toHexString(done));
+			else
+				System.out.print("\r... 0x" + Long.toHexString(done) + " of 0x" + Long.toHexString(total) + (done == total ? "\n" : ""));
+		}
+	};
 
 	static public void main(String[] args) {
 		try {
@@ -67,13 +115,19 @@ public class GangPro8 {
 			System.exit(10);
 		}
 
-		try {
-			if(m_downloadFile != null) {
-				runDownload();
+		try(GangPro8Programmer programmer = new GangPro8Programmer()) {
+			if(m_discover) {
+				runDiscover();
+			} else if(m_downloadFile != null) {
+				runDownload(programmer);
 			} else if(m_writeFile != null) {
-				runUpload();
+				runUpload(programmer);
+			} else if(m_verifyFile != null) {
+				runVerify(programmer);
+			} else if(m_copy) {
+				runCopy(programmer);
 			} else {
-				System.err.println("No action specified: expecting --read or --write");
+				System.err.println("No action specified: expecting --read, --write, --verify, --copy or --discover");
 				System.exit(10);
 			}
 		} catch(MessageException mx) {
@@ -82,493 +136,385 @@ public class GangPro8 {
 		}
 	}
 
-	/*----------------------------------------------------------------------*/
-	/*	CODING:	Write processing.											*/
-	/*----------------------------------------------------------------------*/
-
-	private int m_badSohMessageCount;
-
-	private void runUpload() throws Exception {
-		byte[] data = loadFile();
-
-		SerialPort port = m_port = open();
+	/**
+	 * Wait for the operation to complete, and rethrow its failure as-is.
+	 */
+	static private <T> T await(CompletableFuture<T> future) throws Exception {
 		try {
-			//explain("dlexpl");
-			System.out.println("\nAsking GangPro to enter programming mode..");
-
-			byte[] cmd = "T".getBytes(StandardCharsets.UTF_8);        // PROGRAM mode
-			port.writeBytes(cmd, cmd.length);
-
-			int offset = 0;
-			while(offset < data.length) {
-				//-- Prepare for sending a new record.
-				int todo = Math.min(16, data.length - offset);
-				String record = toIntelHex(data, offset, todo, offset);
-
-				sendAndRetryRecord(port, record);
-			}
-
-
-			port.setRTS();
-
-
-		} finally {
-			try {
-				port.closePort();
-			} catch(Exception x) {
-				System.err.println("Exception closing the serial port: " + x);
-			}
+			return future.join();
+		} catch(CompletionException x) {
+			Throwable cause = x.getCause();
+			if(cause instanceof Exception)
+				throw (Exception) cause;
+			throw x;
 		}
 	}
 
-	static private final byte[] NULNUL = new byte[]{0x0, 0x0};
+	/**
+	 * Create the job from the command line, using the port found by --discover if no port was specified.
+	 */
+	private ProgrammerJob createJob() throws Exception {
+		ProgrammerJob job = createPortJob()
+			.withPasses(m_passes)
+			.withRecordSize(m_recordSize)
+			.withAdaptive(m_adaptive);
+
+		File emulateFile = m_emulateFile;
+		File replayFile = m_replayFile;
+		if(null != emulateFile) {
+			byte[] master = Files.readAllBytes(emulateFile.toPath());
+			job = job.withLinkFactory(j -> new EmulatedDevice(emulateFile.getName(), master));
+		} else if(null != replayFile) {
+			AtomicInteger replayJobs = new AtomicInteger();
+			job = job.withLinkFactory(j -> {
+				File file = sessionFile(replayFile, replayJobs.incrementAndGet());
+				if(!file.exists())
+					throw new MessageException("No capture " + file + " for this job; was it captured with the same options?");
+				return new ReplayLink(file.getName(), Files.readAllBytes(file.toPath()));
+			});
+		}
 
-	private enum AckOrNack {
-		Ack, Nack
+		File captureFile = m_captureFile;
+		if(null != captureFile) {
+			AtomicInteger captureJobs = new AtomicInteger();
+			Link.Factory factory = job.getLinkFactory();
+			job = job.withLinkFactory(j -> capture(factory.open(j), sessionFile(captureFile, captureJobs.incrementAndGet())));
+		}
+		return job;
 	}
 
-	private void sendAndRetryRecord(SerialPort port, String record) throws Exception {
-		waitForSOH();
-
-		for(; ; ) {
-			port.setRTS();
-
-			waitCts(port);
-			m_port.writeBytes(NULNUL, 2);
-			waitCts(port);
-			byte[] recordBytes = record.getBytes(StandardCharsets.UTF_8);
-			m_port.writeBytes(recordBytes, recordBytes.length);
-			port.clearRTS();
+	/**
+	 * The capture file for the nth job of this run: --copy runs many jobs, and
+	 * each gets its own file so that it can be replayed by the same job.
+	 * The first job uses the name as-is, the next ones get .2, .3 etc added.
+	 */
+	static private File sessionFile(File file, int job) {
+		return job == 1 ? file : new File(file.getPath() + "." + job);
+	}
 
-			AckOrNack ackOrNack = waitAckOrNack(port);
-			if(ackOrNack == AckOrNack.Ack)
-				return;
-			Thread.sleep(10);
+	/**
+	 * Save everything the link receives in the file.
+	 */
+	@SuppressWarnings("resource")                    // The stream is owned, and closed, by the CaptureLink
+	static private Link capture(Link link, File file) {
+		try {
+			return new CaptureLink(link, new FileOutputStream(file));
+		} catch(Exception x) {
+			link.close();
+			throw new MessageException("Cannot create " + file + ": " + x);
 		}
 	}
 
-	private AckOrNack waitAckOrNack(SerialPort port) throws Exception {
-		long ets = System.currentTimeMillis() + SOH_TIMEOUT;
-		for(; ; ) {
-			int read = m_port.readBytes(m_buffer, 1);
-			if(read == 0) {
-				if(System.currentTimeMillis() >= ets)
-					throw new MessageException("Timneout waiting for SOH (new record request) from GangPro");
-
-				Thread.sleep(100);
-			}
-			if(m_buffer[0] == 0x15) {                            // NAK?
-				return AckOrNack.Nack;
-			} else if(m_buffer[0] == 0x06) {                    // ACK?
-				return AckOrNack.Ack;
-			} else {
-				if(m_badSohMessageCount < 5) {
-					m_badSohMessageCount++;
-					System.err.println("Unexpected char " + Integer.toHexString(m_buffer[0] & 0xff) + " while waiting for ACK/NAK");
-				}
-			}
+	private ProgrammerJob createPortJob() {
+		if(null != m_emulateFile || null != m_replayFile)
+			return new ProgrammerJob("emulator");
+
+		String portName = m_serialPort;
+		int bitRate = m_bitRate;
+		if(null == portName) {
+			List<PortDiscovery.Found> list = new PortDiscovery().load();
+			if(list.isEmpty())
+				throw new MessageException("No serial port specified: use --serial, or run --discover first");
+			String candidates = list.stream().map(a -> "- " + a + "\n").collect(Collectors.joining());
+			if(list.size() > 1)
+				throw new MessageException("--discover found more than one possible port, use --serial to select one of:\n" + candidates);
+			PortDiscovery.Found found = list.get(0);
+			if(!found.isConfirmed())
+				throw new MessageException("--discover did not confirm a Gangpro-8 on its port, use --serial to use it anyway:\n" + candidates);
+			portName = found.getPortName();
+			if(bitRate == 0)
+				bitRate = found.getBitRate();
+			System.out.println("Using " + found);
 		}
+		if(bitRate == 0)
+			bitRate = ProgrammerJob.DEFAULT_BIT_RATE;
+
+		return new ProgrammerJob(portName)
+			.withBitRate(bitRate);
 	}
 
-	private void waitCts(SerialPort port) throws Exception {
-		if(port.getCTS())
-			return;
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Port discovery.												*/
+	/*----------------------------------------------------------------------*/
 
-		long ets = System.currentTimeMillis() + CTS_TIMEOUT;
-		while(!port.getCTS()) {
-			Thread.sleep(100);
-			if(System.currentTimeMillis() >= ets)
-				throw new MessageException("Timeout waiting for CTS to clear");
+	private void runDiscover() throws Exception {
+		System.out.println("Probing all serial ports for a Gangpro-8..");
+		PortDiscovery discovery = new PortDiscovery();
+		List<PortDiscovery.Found> list = discovery.discover();
+		if(list.isEmpty())
+			throw new MessageException("No Gangpro-8 found (check the cable's RTS and CTS lines). Available ports are:\n" + SerialLink.listPorts());
+		for(PortDiscovery.Found found : list) {
+			System.out.println("- " + found);
 		}
+		discovery.save(list);
+		if(list.size() == 1 && list.get(0).isConfirmed())
+			System.out.println("Saved to " + PortDiscovery.getCacheFile() + "; --serial can now be omitted");
+		else
+			System.out.println("Saved to " + PortDiscovery.getCacheFile() + "; --serial can only be omitted when exactly one port is found and confirmed"
+				+ " (start an upload on the device while discovering to confirm it)");
 	}
 
-	private void waitForSOH() throws Exception {
-		long ets = System.currentTimeMillis() + SOH_TIMEOUT;
-		for(; ; ) {
-			int read = m_port.readBytes(m_buffer, 1);
-			if(read == 0) {
-				if(System.currentTimeMillis() >= ets)
-					throw new MessageException("Timneout waiting for SOH (new record request) from GangPro");
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Write processing.											*/
+	/*----------------------------------------------------------------------*/
 
-				Thread.sleep(100);
-			}
-			if(m_buffer[0] == 0x01) {                            // Got the SOH (ascii 0x01)?
-				return;
-			} else {
-				if(m_badSohMessageCount < 5) {
-					m_badSohMessageCount++;
-					System.err.println("Unexpected char " + Integer.toHexString(m_buffer[0] & 0xff) + " while waiting for SOH");
-				}
-			}
-		}
+	private void runUpload(GangPro8Programmer programmer) throws Exception {
+		ProgrammerJob job = createJob();
+		GangPro8Programmer.WriteResult result = await(programmer.write(job, loadFile(Objects.requireNonNull(m_writeFile)), CONSOLE));
+		System.out.println("Sent " + result);
 	}
 
 	/**
-	 * Read the data into memory, checking the format.
+	 * Open the data, checking the format, and add the transformations (if any).
 	 */
-	private byte[] loadFile() throws Exception {
+	private ImageSource loadFile(File file) throws Exception {
 		switch(m_format){
 			default:
 				throw new MessageException("Unsupported format '" + m_format + "'");
 
 			case binary:
-				return readBinary();
+				return transform(ImageTransforms.mapFile(file));
 		}
 
 
 	}
 
-	private byte[] readBinary() throws Exception {
-		File writeFile = Objects.requireNonNull(m_writeFile);
-		if(!writeFile.exists() || !writeFile.isFile() || !writeFile.canRead())
-			throw new MessageException(writeFile + " does not exist, is not a file or cannot be read");
-		try(InputStream is = new FileInputStream(writeFile)) {
-			byte[] bytes = is.readAllBytes();
-			return bytes;
-		}
+	private ImageSource transform(ImageSource source) throws Exception {
+		String transform = m_transform;
+		if(null == transform)
+			return source;
+		return ImageTransforms.apply(source, transform);
 	}
 
 	/*----------------------------------------------------------------------*/
-	/*	CODING:	Read processing												*/
+	/*	CODING:	Verify.														*/
 	/*----------------------------------------------------------------------*/
 
-
-	enum HexState {
-		Colon,
-		ByteCount,
-		Address,
-		RecordType,
-		Data,
-		Checksum,
-		Eoln
+	private void runVerify(GangPro8Programmer programmer) throws Exception {
+		ProgrammerJob job = createJob();
+		explain("dlexpl");
+		GangPro8Programmer.VerifyResult result = await(programmer.verify(job, loadFile(Objects.requireNonNull(m_verifyFile)), CONSOLE));
+		if(result.getExpectedSize() != result.getActualSize())
+			System.out.println("Size differs: expected 0x" + Long.toHexString(result.getExpectedSize()) + " bytes but read 0x" + Long.toHexString(result.getActualSize()));
+		if(result.isOk()) {
+			System.out.println("Verify OK");
+			return;
+		}
+		for(GangPro8Programmer.Mismatch mismatch : result.getMismatches()) {
+			System.out.println("- " + mismatch);
+		}
+		throw new MessageException("Verify failed: " + result.getMismatchCount() + " byte(s) differ");
 	}
 
-	private int m_gibberish;
-
-	private int m_totalReceived;
-
-	private HexState m_state = HexState.Colon;
-
-	/** For states receiving hex data: the #of character (still) to read */
-	private int m_hexToDo;
-
-	/** For states receiving a value, the hex value collected (so far) */
-	private int m_hexValue;
-
-	/** The #of (remaining) bytes in the DATA record. */
-	private int m_recordByteCount;
-
-	/** The ADDRESS field for the data */
-	private int m_address;
-
-	private int m_expectedAddress;
-
-	/** The sum of all hex bytes received so far. */
-	private int m_lineSum;
-
-	private int m_lineNumber;
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Read processing												*/
+	/*----------------------------------------------------------------------*/
 
-	private ByteArrayOutputStream m_baos;
-
-	private void runDownload() throws Exception {
-		SerialPort port = m_port = open();
-		try {
-			explain("dlexpl");
-			System.out.println("\nWaiting for data from the Gangpro-8");
-			m_totalReceived = 0;
-			m_state = HexState.Colon;
-			m_hexValue = 0;
-			m_baos = new ByteArrayOutputStream(65536);
-			m_gibberish = 0;
-			m_expectedAddress = 0;
-			m_lineNumber = 1;
-
-			byte[] cmd = "U".getBytes(StandardCharsets.UTF_8);        // Set UPLOAD mode (does not work on my device)
-			port.writeBytes(cmd, cmd.length);
-			port.setRTS();
-
-			while(runStates()) {
-				//--
-			}
+	private void runDownload(GangPro8Programmer programmer) throws Exception {
+		ProgrammerJob job = createJob();
+		explain("dlexpl");
+		GangPro8Programmer.ReadResult result = await(programmer.read(job, CONSOLE));
+		if(result.getPasses() > 1)
+			reportConsensus(result);
 
+		try(ImageSource image = transform(ImageTransforms.wrap(result.getImage()))) {
 			switch(m_format){
 				default:
 					throw new IllegalStateException("Unknown format: " + m_format);
 
 				case binary:
-					writeBinaryOutput();
+					writeBinaryOutput(image);
 					break;
 
 				case intel:
-					writeIntelOutput();
+					writeIntelOutput(image);
 					break;
 			}
+		}
+	}
 
-		} finally {
-			try {
-				port.closePort();
-			} catch(Exception x) {
-				System.err.println("Exception closing the serial port: " + x);
-			}
+	private void reportConsensus(GangPro8Programmer.ReadResult result) {
+		List<ConsensusImage.UnstableAddress> list = result.getUnstableAddresses();
+		if(result.getDroppedRecords() > 0)
+			System.out.println(result.getDroppedRecords() + " record(s) had a checksum error and were skipped");
+		if(list.isEmpty()) {
+			System.out.println("All " + result.getPasses() + " passes read identical data");
+			return;
+		}
+		System.out.println(list.size() + " address(es) did not read the same on all " + result.getPasses() + " passes; using the majority value:");
+		for(ConsensusImage.UnstableAddress ua : list) {
+			System.out.println("- " + ua);
 		}
+		int missing = result.getMissingCount();
+		if(missing > 0)
+			throw new MessageException(missing + " address(es) were not read correctly in any pass, so the image would contain made-up bytes; read again, with more --passes");
 	}
 
-	private void writeBinaryOutput() {
+	private void writeBinaryOutput(ImageSource image) {
 		try(FileOutputStream fos = new FileOutputStream(new File(m_downloadFile))) {
-			m_baos.close();
-			byte[] bytes = m_baos.toByteArray();
-			fos.write(bytes);
-			System.out.println("Written 0x" + Integer.toHexString(bytes.length) + " (" + bytes.length + ") bytes to " + m_downloadFile);
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = image.read(buffer, 0, buffer.length)) > 0) {
+				fos.write(buffer, 0, read);
+			}
+			System.out.println("Written 0x" + Long.toHexString(image.size()) + " (" + image.size() + ") bytes to " + m_downloadFile);
 		} catch(Exception x) {
 			throw new MessageException("Failed to write file: " + x);
 		}
 	}
 
-	private void writeIntelOutput() {
+	private void writeIntelOutput(ImageSource image) {
+		IntelHex.checkSize(image.size());
 		try(OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(new File(m_downloadFile)), StandardCharsets.UTF_8)) {
-			m_baos.close();
-			byte[] bytes = m_baos.toByteArray();
+			byte[] buffer = new byte[0x20];
 			int off = 0;
-			while(off < bytes.length) {
-				String ba = toIntelHex(bytes, off, 0x20, off);
+			int read;
+			while((read = image.readFully(buffer, 0, buffer.length)) > 0) {
+				String ba = IntelHex.toRecord(buffer, 0, read, off);
 				osw.write(ba);
 				osw.write(System.lineSeparator());
-				off += 0x20;
+				off += read;
 			}
 			//-- And the last one
-			osw.write(":00000001ff");
+			osw.write(IntelHex.EOF_RECORD);
 			osw.write(System.lineSeparator());
-			System.out.println("Written 0x" + Integer.toHexString(bytes.length) + " (" + bytes.length + ") bytes to " + m_downloadFile + " in Intel Hex format");
+			System.out.println("Written 0x" + Long.toHexString(image.size()) + " (" + image.size() + ") bytes to " + m_downloadFile + " in Intel Hex format");
 		} catch(Exception x) {
 			throw new MessageException("Failed to write file: " + x);
 		}
 	}
 
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Copy station.												*/
+	/*----------------------------------------------------------------------*/
 
-	private boolean runStates() {
-		//-- Do we need hex chars?
-		if(m_hexToDo > 0) {
-			readHexValue();
-			return true;
+	/**
+	 * Read the master once, then program blanks with it until the operator
+	 * stops. The records are encoded only once, and the operator is asked
+	 * for the next blank as soon as the last record of a chip has been sent,
+	 * so swapping the chip overlaps with the device's final ACK.
+	 */
+	private void runCopy(GangPro8Programmer programmer) throws Exception {
+		ProgrammerJob job = createJob();
+		explain("dlexpl");
+		GangPro8Programmer.ReadResult master = await(programmer.read(job, CONSOLE));
+		if(master.getPasses() > 1)
+			reportConsensus(master);
+		byte[] image;
+		try(ImageSource source = transform(ImageTransforms.wrap(master.getImage()))) {
+			image = new byte[(int) source.size()];
+			source.readFully(image, 0, image.length);
 		}
+		RecordCache records = new RecordCache(image, job.getRecordSize());
+		System.out.println("Master image of 0x" + Integer.toHexString(image.length) + " bytes read");
 
-		switch(m_state){
-			default:
-				throw new IllegalStateException("Unexpected state: " + m_state);
-
-			case Colon:
-				return waitColon();
-
-			case ByteCount:
-				//-- Once the byte count has been read just save it, then go to address
-				if(m_hexValue > 255)
-					fail("Byte count value " + m_hexValue + " in record invalid, it must be 0 <= count <= 255");
-				m_recordByteCount = m_hexValue;
-				return enter(HexState.Address, 4);
-
-			case Address:
-				m_address = m_hexValue;
-				return enter(HexState.RecordType, 2);
-
-			case RecordType:
-				//-- Check the record type
-				if(m_hexValue > 0x05) {
-					fail("Invalid record type 0x" + Integer.toHexString(m_hexValue));
-				}
-				if(m_hexValue == 0x01) {
-					//-- EOF -> we're done
-					System.out.println("All data received");
-					return false;
-				}
-				if(m_hexValue == 0) {
-					if(m_recordByteCount == 0)
-						fail("Byte count value " + m_hexValue + " in record invalid, it must be 0 <= count <= 255");
-
-					if(m_address != m_expectedAddress) {
-						fail("Incorrect address: expecting 0x" + Integer.toHexString(m_expectedAddress) + " but got 0x"  + Integer.toHexString(m_address));
-					}
-
-					return enter(HexState.Data, 2);
-				}
-				fail("The record type " + Integer.toHexString(m_hexValue) + " is not implemented");
-				return false;
-
-			case Data:
-				//-- Got a byte of data.
-				if(m_hexValue > 255) {
-					fail("Unexpected data value 0x" + Integer.toHexString(m_hexValue));
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		if(!askForBlank(console, "Insert the first blank"))
+			return;
+		int chip = 1;
+		int failed = 0;
+		for(;;) {
+			int current = chip;
+			CompletableFuture<Void> finishing = new CompletableFuture<>();
+			CompletableFuture<GangPro8Programmer.WriteResult> write = programmer.write(job, records, new ProgressListener() {
+				@Override
+				public void message(String message) {
+					CONSOLE.message(message);
 				}
-				m_baos.write(m_hexValue);
-				m_hexValue = 0;
 
-				if(m_expectedAddress == 0) {
-					System.out.println("** receiving data **");
-				}
-				if((m_expectedAddress & 0xff) == 0) {
-					System.out.println("... at address 0x" + Integer.toHexString(m_expectedAddress));
+				@Override
+				public void progress(long done, long total) {
+					CONSOLE.progress(done, total);
 				}
 
-				m_expectedAddress++;
-				m_recordByteCount--;
-				if(m_recordByteCount > 0) {
-					return enter(HexState.Data, 2);
+				@Override
+				public void finishing() {
+					finishing.complete(null);
 				}
-
-				//-- All DATA gotten
-				return enter(HexState.Checksum, 2);
-
-			case Checksum:
-				//-- check sum
-				if((m_lineSum & 0xff) != 0) {
-					fail("checksum error at line " + m_lineNumber + ", sum=0x" + Integer.toHexString(m_lineSum & 0xff));
+			});
+			write.whenComplete((result, x) -> {
+				if(x instanceof CompletionException && null != x.getCause())
+					x = x.getCause();
+				if(null != x)
+					System.out.println("Chip " + current + " FAILED: " + x.getMessage());
+				else
+					System.out.println("Chip " + current + ": sent " + result);
+				finishing.complete(null);                // Also when it failed before the last record
+			});
+
+			boolean last = m_copies > 0 && chip >= m_copies;
+			boolean ok;
+			boolean more;
+			if(m_readback || last) {
+				ok = awaitChip(write);
+				String next = "Insert the next blank";
+				if(ok && m_readback) {
+					ok = readBack(programmer, job, image, current, console);
+					next = "Take chip " + current + " out of the MASTER socket, insert the next blank";
 				}
-				m_lineSum = 0;
-				return enter(HexState.Eoln, 0);
-
-			case Eoln:
-				return waitEoln();
-
-		}
-	}
-
-	private boolean waitEoln() {
-		for(;;) {
-			int c = readChar();
-			if(c == '\r' || c == '\n') {
-				m_lineNumber++;
-				return enter(HexState.Colon, 0);
+				more = !last && askForBlank(console, next);
+			} else {
+				finishing.join();
+				System.out.println();                        // End the progress line
+				more = askForBlank(console, "Chip " + chip + " is finishing; insert the next blank");
+				ok = awaitChip(write);
 			}
+			if(!ok)
+				failed++;
+			if(!more)
+				break;
+			chip++;
 		}
+		System.out.println(chip + " chip(s) programmed, " + failed + " failed");
+		if(failed > 0)
+			throw new MessageException(failed + " chip(s) failed");
 	}
 
-	private void fail(String s) {
-		throw new MessageException(s);
-	}
-
-	private boolean waitColon() {
-		int c = readChar();
-		if(c == ':') {
-			return enter(HexState.ByteCount, 2);
-		}
-		if(c == '\r' || c == '\n') {				// Left from previous line
+	/**
+	 * Wait for the chip to be programmed; its result has already been reported.
+	 */
+	static private boolean awaitChip(CompletableFuture<GangPro8Programmer.WriteResult> write) {
+		try {
+			write.join();
 			return true;
+		} catch(CompletionException x) {
+			return false;
 		}
-		m_gibberish++;
-		if(m_gibberish == 1) {
-			System.out.println("Receiving something but it does not start with ':'; skipping spurious data");
-		}
-		return true;
-	}
-
-	private boolean enter(HexState state, int count) {
-		m_state = state;
-		m_hexToDo = count;
-		m_hexValue = 0;
-		return true;
 	}
 
-	private void readHexValue() {
-		if(m_hexToDo <= 0)
-			throw new IllegalStateException("Should have hex data to read");
-		int c = readChar();
-		c = Character.toUpperCase(c);
-		if(c >= '0' && c <= '9') {
-			m_hexValue = (m_hexValue << 4) | (c - '0');
-		} else if(c >= 'A' && c <= 'F') {
-			m_hexValue = (m_hexValue << 4) | (c - 'A' + 10);
-		} else {
-			throw new MessageException("Invalid character 0x" + Integer.toHexString(c) + " found while expecting a hex digit (" + m_state + ")");
+	/**
+	 * The device can only send the content of the MASTER socket, so the
+	 * operator moves the programmed chip there to have it read back.
+	 */
+	private boolean readBack(GangPro8Programmer programmer, ProgrammerJob job, byte[] image, int chip, BufferedReader console) throws Exception {
+		System.out.println("Chip " + chip + ": move it into the MASTER socket (SKTM), leave the other sockets empty, and press Enter");
+		console.readLine();
+		System.out.println("Press the SETUP key until the display says \"UPLOAD\"");
+		GangPro8Programmer.VerifyResult result = await(programmer.verify(job, ImageTransforms.wrap(image), CONSOLE));
+		if(result.isOk()) {
+			System.out.println("Chip " + chip + ": verify OK");
+			return true;
 		}
-		m_hexToDo--;
-		if((m_hexToDo & 0x01) == 0) {					// Every even #of chars add the just received byte to the line sum.
-			m_lineSum += (m_hexValue & 0xff);
+		for(GangPro8Programmer.Mismatch mismatch : result.getMismatches()) {
+			System.out.println("- " + mismatch);
 		}
+		System.out.println("Chip " + chip + " FAILED verify: " + result.getMismatchCount() + " byte(s) differ");
+		return false;
 	}
 
-	private byte[] m_buffer = new byte[16];
-
-	private int m_readIndex;
-
-	private int m_readLength;
-
-	private int readChar() {
-		if(m_readIndex >= m_readIndex) {
-			m_readLength = m_port.readBytes(m_buffer, m_buffer.length);
-			m_readIndex = 0;
-		}
-		if(m_readLength <= 0) {
-			throw new IllegalStateException("EOF on port: " + m_readLength);
-		}
-		int val = m_buffer[m_readIndex++] & 0xff;
-		//System.out.println(".... " + m_state + " got 0x" + Integer.toHexString(val) + " '" + (char)val + "'");
-		m_totalReceived++;
-		return val;
+	/**
+	 * Ask the operator to insert a blank; returns false when the operator wants to stop.
+	 */
+	static private boolean askForBlank(BufferedReader console, String what) throws Exception {
+		System.out.println(what + " and press Enter, or enter q to stop");
+		String line = console.readLine();
+		return null != line && !line.trim().equalsIgnoreCase("q");
 	}
 
-
 	/*----------------------------------------------------------------------*/
 	/*	CODING:	Support code.												*/
 	/*----------------------------------------------------------------------*/
 
-	private int m_writeSum;
-
-	private String toIntelHex(byte[] buf, int off, int len, int outputAddress) {
-		if(len == 0 || len > 255)
-			throw new IllegalStateException("Bad length");
-		m_writeSum = 0;
-		StringBuilder sb = new StringBuilder();
-		sb.append(':');
-		appendByte(sb, len);                        // byte count
-		appendByte(sb, outputAddress >> 16);    // address
-		appendByte(sb, outputAddress);
-		appendByte(sb, 0);                    // Record type
-		int end = off + len;
-		if(end > buf.length)
-			end = buf.length - off;
-		if(end <= 0)
-			throw new IllegalStateException("Invalid buffer size/length");
-		while(off < end) {
-			appendByte(sb, buf[off++]);                // data bytes
-		}
-		int sum = -m_writeSum;
-		appendByte(sb, sum);                        // 2-complement of sum
-		return sb.toString();
-	}
-
-	private void appendByte(StringBuilder sb, int value) {
-		appendNibble(sb, value >> 4);
-		appendNibble(sb, value);
-		m_writeSum += (value & 0xff);
-	}
-
-	private void appendNibble(StringBuilder sb, int value) {
-		sb.append(Character.forDigit(value & 0xf, 16));
-	}
-
-	/**
-	 * Open serial port for use.
-	 */
-	private SerialPort open() throws Exception {
-		try {
-			SerialPort port = SerialPort.getCommPort(m_serialPort);
-			port.setBaudRate(m_bitRate);
-			port.setNumStopBits(2);
-			port.setNumDataBits(8);
-			port.setParity(SerialPort.NO_PARITY);
-			//port.setFlowControl(SerialPort.FLOW_CONTROL_CTS_ENABLED | SerialPort.FLOW_CONTROL_RTS_ENABLED);
-			port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 0, 0);
-			//port.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, 1000, 1000);
-			port.openPort();
-			return port;
-		} catch(SerialPortInvalidPortException spx) {
-			String ports = Arrays.stream(SerialPort.getCommPorts())
-				.map(a -> "- " + a.getSystemPortName() + " " +  a.getDescriptivePortName() + "\n")
-				.collect(Collectors.joining());
-
-			throw new MessageException(spx.getMessage() + "\nAvailable ports are: " + ports);
-		}
-	}
-
 	private void explain(String what) {
 		try(InputStream is = getClass().getResourceAsStream("/" + what + ".txt")) {
 			if(is == null) {
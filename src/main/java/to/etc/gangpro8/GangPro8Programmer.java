@@ -0,0 +1,310 @@
+package to.etc.gangpro8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * The library interface to one or more Gangpro-8 programmers. All
+ * operations run asynchronously and return a CompletableFuture; failures
+ * complete the future exceptionally (usually with a MessageException)
+ * instead of ending the JVM.
+ *
+ * All transfers run on a single {@link ProtocolLoop} thread. Opening the
+ * ports and completing the futures (and so anything chained to them)
+ * happens on the loop's callback executor instead, so neither can stall
+ * the transfers. Operations on different ports run in parallel;
+ * operations on the same port are executed one after the other. A
+ * single instance can be shared by the whole application.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class GangPro8Programmer implements AutoCloseable {
+	/** The max #of mismatches kept by verify(). */
+	static private final int MAX_MISMATCHES = 100;
+
+	private final ProtocolLoop m_loop;
+
+	private final boolean m_ownLoop;
+
+	/** The last job submitted per port name, so that jobs on the same port do not interfere. */
+	private final Map<String, CompletableFuture<?>> m_portTails = new HashMap<>();
+
+	@SuppressWarnings("resource")                    // The loop is closed by close()
+	public GangPro8Programmer() {
+		this(new ProtocolLoop(), true);
+	}
+
+	/**
+	 * Run the transfers on the specified loop, so that it can be shared with other code.
+	 */
+	public GangPro8Programmer(ProtocolLoop loop) {
+		this(loop, false);
+	}
+
+	private GangPro8Programmer(ProtocolLoop loop, boolean ownLoop) {
+		m_loop = loop;
+		m_ownLoop = ownLoop;
+	}
+
+	@Override
+	public void close() {
+		if(m_ownLoop)
+			m_loop.close();
+	}
+
+	/**
+	 * Read the MASTER socket. When the job has more than one pass the
+	 * result is the consensus of all passes.
+	 */
+	public CompletableFuture<ReadResult> read(ProgrammerJob job, ProgressListener listener) {
+		return submit(job, () -> new DownloadEngine(job, listener));
+	}
+
+	/**
+	 * Program the image. The image source is closed when done.
+	 */
+	public CompletableFuture<WriteResult> write(ProgrammerJob job, ImageSource image, ProgressListener listener) {
+		return submit(job, () -> new UploadEngine(job, image, listener))
+			.whenComplete((r, x) -> closeQuietly(image));
+	}
+
+	/**
+	 * Program an image whose records were encoded before, for programming
+	 * many chips with the same image.
+	 */
+	public CompletableFuture<WriteResult> write(ProgrammerJob job, RecordCache records, ProgressListener listener) {
+		return submit(job, () -> new UploadEngine(job, records, listener));
+	}
+
+	/**
+	 * Program an image that is still being prepared. This allows the
+	 * preparation of the next image to overlap with the current transfer.
+	 */
+	public CompletableFuture<WriteResult> write(ProgrammerJob job, CompletionStage<? extends ImageSource> image, ProgressListener listener) {
+		return image.toCompletableFuture().thenCompose(data -> write(job, data, listener));
+	}
+
+	/**
+	 * Read the MASTER socket and compare it with the expected image. The image source is closed when done.
+	 */
+	public CompletableFuture<VerifyResult> verify(ProgrammerJob job, ImageSource expected, ProgressListener listener) {
+		return read(job, listener)
+			.thenApply(result -> {
+				try {
+					return compare(expected, result.getImage());
+				} catch(RuntimeException x) {
+					throw x;
+				} catch(Exception x) {
+					throw new CompletionException(x);
+				}
+			})
+			.whenComplete((r, x) -> closeQuietly(expected));
+	}
+
+	static private void closeQuietly(ImageSource image) {
+		try {
+			image.close();
+		} catch(Exception x) {
+			//-- Nothing we can do
+		}
+	}
+
+	static private VerifyResult compare(ImageSource expected, byte[] actual) throws Exception {
+		List<Mismatch> list = new ArrayList<>();
+		int count = 0;
+		byte[] buffer = new byte[4096];
+		int address = 0;
+		int read;
+		while((read = expected.read(buffer, 0, buffer.length)) > 0) {
+			for(int i = 0; i < read; i++, address++) {
+				int exp = buffer[i] & 0xff;
+				int act = address < actual.length ? actual[address] & 0xff : -1;
+				if(exp != act) {
+					if(list.size() < MAX_MISMATCHES)
+						list.add(new Mismatch(address, exp, act));
+					count++;
+				}
+			}
+		}
+		return new VerifyResult(expected.size(), actual.length, count, list);
+	}
+
+	/**
+	 * Start the engine as soon as the previous job on the same port has finished.
+	 */
+	private <T> CompletableFuture<T> submit(ProgrammerJob job, Supplier<ProtocolEngine<T>> engine) {
+		synchronized(m_portTails) {
+			CompletableFuture<?> previous = m_portTails.getOrDefault(job.getPortName(), CompletableFuture.completedFuture(null));
+			CompletableFuture<T> future = previous
+				.handle((r, x) -> null)
+				.thenComposeAsync(a -> start(job, engine), m_loop.getCallbackExecutor());
+			m_portTails.put(job.getPortName(), future);
+			return future;
+		}
+	}
+
+	private <T> CompletableFuture<T> start(ProgrammerJob job, Supplier<ProtocolEngine<T>> engine) {
+		try {
+			ProtocolEngine<T> e = engine.get();                // First, so that a failure cannot leak the link
+			return m_loop.submit(job.getLinkFactory().open(job), e);
+		} catch(Exception x) {
+			return CompletableFuture.failedFuture(x);
+		}
+	}
+
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Results.													*/
+	/*----------------------------------------------------------------------*/
+
+	static public final class ReadResult {
+		private final byte[] m_image;
+
+		private final int m_passes;
+
+		private final int m_droppedRecords;
+
+		private final List<ConsensusImage.UnstableAddress> m_unstableAddresses;
+
+		ReadResult(byte[] image, int passes, int droppedRecords, List<ConsensusImage.UnstableAddress> unstableAddresses) {
+			m_image = image;
+			m_passes = passes;
+			m_droppedRecords = droppedRecords;
+			m_unstableAddresses = Collections.unmodifiableList(unstableAddresses);
+		}
+
+		/** The image read, or the majority image when multiple passes were read. */
+		public byte[] getImage() {
+			return m_image;
+		}
+
+		public int getPasses() {
+			return m_passes;
+		}
+
+		/** The #of records skipped because of a checksum error (multiple passes only). */
+		public int getDroppedRecords() {
+			return m_droppedRecords;
+		}
+
+		/** The addresses that did not read the same on all passes. */
+		public List<ConsensusImage.UnstableAddress> getUnstableAddresses() {
+			return m_unstableAddresses;
+		}
+
+		/** The #of addresses that no pass delivered; the image has 0xff there. */
+		public int getMissingCount() {
+			return (int) m_unstableAddresses.stream().filter(ConsensusImage.UnstableAddress::isMissing).count();
+		}
+	}
+
+	static public final class WriteResult {
+		private final int m_bytes;
+
+		private final int m_records;
+
+		private final int m_naks;
+
+		WriteResult(int bytes, int records, int naks) {
+			m_bytes = bytes;
+			m_records = records;
+			m_naks = naks;
+		}
+
+		public int getBytes() {
+			return m_bytes;
+		}
+
+		public int getRecords() {
+			return m_records;
+		}
+
+		public int getNaks() {
+			return m_naks;
+		}
+
+		@Override
+		public String toString() {
+			return "0x" + Integer.toHexString(m_bytes) + " bytes in " + m_records + " records, " + m_naks + " NAK(s)";
+		}
+	}
+
+	static public final class Mismatch {
+		private final int m_address;
+
+		private final int m_expected;
+
+		private final int m_actual;
+
+		Mismatch(int address, int expected, int actual) {
+			m_address = address;
+			m_expected = expected;
+			m_actual = actual;
+		}
+
+		public int getAddress() {
+			return m_address;
+		}
+
+		public int getExpected() {
+			return m_expected;
+		}
+
+		/** The value read, or -1 if the device's image was too short. */
+		public int getActual() {
+			return m_actual;
+		}
+
+		@Override
+		public String toString() {
+			return "0x" + Integer.toHexString(m_address) + ": expected 0x" + Integer.toHexString(m_expected)
+				+ (m_actual < 0 ? ", missing" : ", read 0x" + Integer.toHexString(m_actual));
+		}
+	}
+
+	static public final class VerifyResult {
+		private final long m_expectedSize;
+
+		private final long m_actualSize;
+
+		private final int m_mismatchCount;
+
+		private final List<Mismatch> m_mismatches;
+
+		VerifyResult(long expectedSize, long actualSize, int mismatchCount, List<Mismatch> mismatches) {
+			m_expectedSize = expectedSize;
+			m_actualSize = actualSize;
+			m_mismatchCount = mismatchCount;
+			m_mismatches = Collections.unmodifiableList(mismatches);
+		}
+
+		/** True when every byte of the expected image was read back correctly. */
+		public boolean isOk() {
+			return m_mismatchCount == 0;
+		}
+
+		public long getExpectedSize() {
+			return m_expectedSize;
+		}
+
+		public long getActualSize() {
+			return m_actualSize;
+		}
+
+		public int getMismatchCount() {
+			return m_mismatchCount;
+		}
+
+		/** The first mismatches found. */
+		public List<Mismatch> getMismatches() {
+			return m_mismatches;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package to.etc.gangpro8;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sequential source of image bytes with a known size. Transformations
+ * wrap a source and produce their output while it is being read, so an
+ * image goes from file to wire without intermediate copies.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public interface ImageSource extends Closeable {
+	/**
+	 * The total #of bytes this source produces.
+	 */
+	long size();
+
+	/**
+	 * Read at most len bytes; returns -1 when all bytes have been read.
+	 */
+	int read(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * Skip n bytes, returning the #of bytes actually skipped.
+	 */
+	default long skip(long n) throws IOException {
+		byte[] buf = new byte[4096];
+		long done = 0;
+		while(done < n) {
+			int read = read(buf, 0, (int) Math.min(buf.length, n - done));
+			if(read < 0)
+				break;
+			done += read;
+		}
+		return done;
+	}
+
+	/**
+	 * Read until len bytes are read or the source is exhausted.
+	 */
+	default int readFully(byte[] buf, int off, int len) throws IOException {
+		int done = 0;
+		while(done < len) {
+			int read = read(buf, off + done, len - done);
+			if(read < 0)
+				return done == 0 ? -1 : done;
+			done += read;
+		}
+		return done;
+	}
+
+	@Override
+	default void close() throws IOException {
+	}
+}
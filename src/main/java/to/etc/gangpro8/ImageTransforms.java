@@ -0,0 +1,372 @@
+package to.etc.gangpro8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The image sources and the transformations that can be chained on them.
+ * A pipeline is specified as a comma separated list of steps that are
+ * applied from left to right:
+ * <ul>
+ *	<li>extract:start[:length] - only use the bytes from start (for length bytes)</li>
+ *	<li>fill:size[:value] - pad the image to size bytes with value (default 0xff)</li>
+ *	<li>offset:n[:value] - move the image n bytes up, padding with value; a negative n drops the first n bytes</li>
+ *	<li>swap - swap every pair of bytes</li>
+ *	<li>cat:file - append the content of another binary file</li>
+ * </ul>
+ * Numbers can be decimal or hex (0x...).
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+final public class ImageTransforms {
+	private ImageTransforms() {
+	}
+
+	/**
+	 * Apply all steps in the specification to the source. When a step is
+	 * invalid the source (with whatever was built on it) is closed.
+	 */
+	static public ImageSource apply(ImageSource source, String spec) throws IOException {
+		try {
+			for(String step : spec.split(",")) {
+				step = step.trim();
+				if(!step.isEmpty())
+					source = applyStep(source, step, spec);
+			}
+			return source;
+		} catch(RuntimeException | IOException x) {
+			try {
+				source.close();
+			} catch(IOException cx) {
+				x.addSuppressed(cx);
+			}
+			throw x;
+		}
+	}
+
+	static private ImageSource applyStep(ImageSource source, String step, String spec) throws IOException {
+		String[] ar = step.split(":");
+		try {
+			switch(ar[0].toLowerCase()){
+				default:
+					throw new MessageException("Unknown transformation '" + ar[0] + "' in " + spec);
+
+				case "extract":
+					checkArgs(step, ar, 2, 3);
+					return new Extract(source, number(ar[1]), ar.length > 2 ? number(ar[2]) : -1);
+
+				case "fill":
+					checkArgs(step, ar, 2, 3);
+					return new Fill(source, 0, number(ar[1]), ar.length > 2 ? (int) number(ar[2]) : 0xff);
+
+				case "offset":
+					checkArgs(step, ar, 2, 3);
+					long offset = number(ar[1]);
+					if(offset < 0)
+						return new Extract(source, -offset, -1);
+					return new Fill(source, offset, offset + source.size(), ar.length > 2 ? (int) number(ar[2]) : 0xff);
+
+				case "swap":
+					checkArgs(step, ar, 1, 1);
+					return new Swap(source);
+
+				case "cat":
+					ar = step.split(":", 2);                    // The file name can contain a colon, like C:\banks\b1.bin
+					checkArgs(step, ar, 2, 2);
+					return new Concat(source, mapFile(new File(ar[1])));
+			}
+		} catch(NumberFormatException x) {
+			throw new MessageException("Invalid number in transformation '" + step + "'");
+		}
+	}
+
+	static private void checkArgs(String step, String[] ar, int min, int max) {
+		if(ar.length < min || ar.length > max)
+			throw new MessageException("Invalid number of parameters in transformation '" + step + "'");
+	}
+
+	static private long number(String s) {
+		return Long.decode(s.trim());
+	}
+
+	/**
+	 * Memory map a binary file.
+	 */
+	static public ImageSource mapFile(File file) throws IOException {
+		if(!file.exists() || !file.isFile() || !file.canRead())
+			throw new MessageException(file + " does not exist, is not a file or cannot be read");
+		try(FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new Mapped(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		}
+	}
+
+	static public ImageSource wrap(byte[] data) {
+		return new Mapped(ByteBuffer.wrap(data));
+	}
+
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Sources and transformations.								*/
+	/*----------------------------------------------------------------------*/
+
+	static private final class Mapped implements ImageSource {
+		private final ByteBuffer m_buffer;
+
+		private final long m_size;
+
+		Mapped(ByteBuffer buffer) {
+			m_buffer = buffer;
+			m_size = buffer.remaining();
+		}
+
+		@Override
+		public long size() {
+			return m_size;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) {
+			int todo = Math.min(len, m_buffer.remaining());
+			if(todo <= 0)
+				return len == 0 ? 0 : -1;
+			m_buffer.get(buf, off, todo);
+			return todo;
+		}
+
+		@Override
+		public long skip(long n) {
+			int todo = (int) Math.min(n, m_buffer.remaining());
+			m_buffer.position(m_buffer.position() + todo);
+			return todo;
+		}
+	}
+
+	static private final class Extract implements ImageSource {
+		private final ImageSource m_source;
+
+		private final long m_start;
+
+		private final long m_size;
+
+		private long m_position = -1;
+
+		Extract(ImageSource source, long start, long length) {
+			if(start > source.size())
+				throw new MessageException("extract: start 0x" + Long.toHexString(start) + " is past the end of the image (0x" + Long.toHexString(source.size()) + ")");
+			long max = source.size() - start;
+			if(length < 0)
+				length = max;
+			else if(length > max)
+				throw new MessageException("extract: 0x" + Long.toHexString(start) + " + 0x" + Long.toHexString(length) + " is past the end of the image (0x" + Long.toHexString(source.size()) + ")");
+			m_source = source;
+			m_start = start;
+			m_size = length;
+		}
+
+		@Override
+		public long size() {
+			return m_size;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(m_position < 0) {
+				m_source.skip(m_start);
+				m_position = 0;
+			}
+			int todo = (int) Math.min(len, m_size - m_position);
+			if(todo <= 0)
+				return len == 0 ? 0 : -1;
+			int read = m_source.read(buf, off, todo);
+			if(read > 0)
+				m_position += read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			m_source.close();
+		}
+	}
+
+	/**
+	 * Places the source at an offset inside an image of a given size, filling the rest.
+	 */
+	static private final class Fill implements ImageSource {
+		private final ImageSource m_source;
+
+		private final long m_offset;
+
+		private final long m_size;
+
+		private final byte m_value;
+
+		private long m_position;
+
+		Fill(ImageSource source, long offset, long size, int value) {
+			if(offset + source.size() > size)
+				throw new MessageException("fill: the image (0x" + Long.toHexString(source.size()) + " bytes) is larger than 0x" + Long.toHexString(size));
+			m_source = source;
+			m_offset = offset;
+			m_size = size;
+			m_value = (byte) value;
+		}
+
+		@Override
+		public long size() {
+			return m_size;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			long end = m_offset + m_source.size();
+			if(m_position < m_offset || m_position >= end) {
+				long limit = m_position < m_offset ? m_offset : m_size;
+				int todo = (int) Math.min(len, limit - m_position);
+				if(todo <= 0)
+					return -1;
+				for(int i = 0; i < todo; i++)
+					buf[off + i] = m_value;
+				m_position += todo;
+				return todo;
+			}
+			int read = m_source.read(buf, off, (int) Math.min(len, end - m_position));
+			if(read < 0)
+				throw new IOException("Premature end of image at 0x" + Long.toHexString(m_position));
+			m_position += read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			m_source.close();
+		}
+	}
+
+	static private final class Swap implements ImageSource {
+		private final ImageSource m_source;
+
+		/** The first byte of a pair whose second byte has already been returned, or -1. */
+		private int m_pending = -1;
+
+		private final byte[] m_pair = new byte[2];
+
+		Swap(ImageSource source) {
+			m_source = source;
+		}
+
+		@Override
+		public long size() {
+			return m_source.size();
+		}
+
+		/**
+		 * Pairs are always read from the source as a whole; when the caller
+		 * asks for an odd #of bytes the other half of the last pair is kept
+		 * for the next call, so the pairs stay aligned to the image.
+		 */
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			int done = 0;
+			if(m_pending >= 0) {
+				buf[off] = (byte) m_pending;
+				m_pending = -1;
+				done = 1;
+			}
+			int pairs = (len - done) & ~1;
+			if(pairs > 0) {
+				int read = m_source.readFully(buf, off + done, pairs);
+				if(read > 0) {
+					for(int i = 0; i + 1 < read; i += 2) {
+						byte t = buf[off + done + i];
+						buf[off + done + i] = buf[off + done + i + 1];
+						buf[off + done + i + 1] = t;
+					}
+					done += read;
+				}
+				if(read < pairs)                            // End of the source
+					return done == 0 ? -1 : done;
+			}
+			if(done < len) {
+				//-- One more byte wanted: read its pair and keep the other half
+				int read = m_source.readFully(m_pair, 0, 2);
+				if(read == 2) {
+					buf[off + done++] = m_pair[1];
+					m_pending = m_pair[0] & 0xff;
+				} else if(read == 1) {
+					buf[off + done++] = m_pair[0];            // The last byte of an odd sized image
+				}
+			}
+			return done == 0 ? -1 : done;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long done = 0;
+			if(n > 0 && m_pending >= 0) {
+				m_pending = -1;
+				done = 1;
+			}
+			long pairs = (n - done) & ~1L;
+			if(pairs > 0) {
+				long skipped = m_source.skip(pairs);
+				done += skipped;
+				if(skipped < pairs)
+					return done;
+			}
+			if(done < n && read(new byte[1], 0, 1) == 1)
+				done++;
+			return done;
+		}
+
+		@Override
+		public void close() throws IOException {
+			m_source.close();
+		}
+	}
+
+	static private final class Concat implements ImageSource {
+		private final ImageSource m_first;
+
+		private final ImageSource m_second;
+
+		private boolean m_inSecond;
+
+		Concat(ImageSource first, ImageSource second) {
+			m_first = first;
+			m_second = second;
+		}
+
+		@Override
+		public long size() {
+			return m_first.size() + m_second.size();
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(!m_inSecond) {
+				int read = m_first.read(buf, off, len);
+				if(read >= 0)
+					return read;
+				m_inSecond = true;
+			}
+			return m_second.read(buf, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				m_first.close();
+			} finally {
+				m_second.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package to.etc.gangpro8;
+
+/**
+ * Encodes Intel Hex records. This has no state so it can be used by
+ * many transfers at the same time.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+final public class IntelHex {
+	static public final String EOF_RECORD = ":00000001ff";
+
+	/** Only 16 bit addresses are used, as the Gangpro-8 does not know the extended address records. */
+	static public final int MAX_IMAGE_SIZE = 0x10000;
+
+	private IntelHex() {
+	}
+
+	/**
+	 * Create a DATA record for len bytes from buf, to be stored at outputAddress.
+	 */
+	static public String toRecord(byte[] buf, int off, int len, int outputAddress) {
+		if(len == 0 || len > 255)
+			throw new IllegalStateException("Bad length");
+		int end = off + len;
+		if(end > buf.length)
+			throw new IllegalStateException("Invalid buffer size/length");
+		if(outputAddress < 0 || outputAddress + len > MAX_IMAGE_SIZE)
+			throw new IllegalStateException("Address 0x" + Integer.toHexString(outputAddress) + " does not fit in 16 bits");
+		StringBuilder sb = new StringBuilder(11 + len * 2);
+		sb.append(':');
+		int sum = appendByte(sb, len);                    // byte count
+		sum += appendByte(sb, outputAddress >> 8);        // address
+		sum += appendByte(sb, outputAddress);
+		sum += appendByte(sb, 0);                    // Record type
+		while(off < end) {
+			sum += appendByte(sb, buf[off++]);            // data bytes
+		}
+		appendByte(sb, -sum);                        // 2-complement of sum
+		return sb.toString();
+	}
+
+	/**
+	 * Fail when an image is too big to be addressed, instead of letting the addresses wrap.
+	 */
+	static public void checkSize(long size) {
+		if(size > MAX_IMAGE_SIZE)
+			throw new MessageException("The image is 0x" + Long.toHexString(size) + " bytes, but Intel Hex without extended address records can only hold 0x"
+				+ Integer.toHexString(MAX_IMAGE_SIZE) + " bytes; use extract to select a part");
+	}
+
+	static private int appendByte(StringBuilder sb, int value) {
+		appendNibble(sb, value >> 4);
+		appendNibble(sb, value);
+		return value & 0xff;
+	}
+
+	static private void appendNibble(StringBuilder sb, int value) {
+		sb.append(Character.forDigit(value & 0xf, 16));
+	}
+}
@@ -0,0 +1,42 @@
+package to.etc.gangpro8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to a (real or emulated) Gangpro-8. All methods must be
+ * non-blocking: they are called from the {@link ProtocolLoop} thread
+ * that serves all links.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public interface Link extends ProtocolOutput, AutoCloseable {
+	/**
+	 * Creates the link for a job when the job is started.
+	 */
+	interface Factory {
+		Link open(ProgrammerJob job) throws Exception;
+	}
+
+	/** Identifies the device in messages. Jobs are serialized by {@link ProgrammerJob#getPortName()}, not by this name. */
+	String getName();
+
+	/**
+	 * Read the bytes that are available into the buffer, without waiting.
+	 * Returns the #of bytes read, or -1 when the link has no more data
+	 * (end of a replay).
+	 */
+	int read(ByteBuffer buffer) throws Exception;
+
+	boolean isCts() throws Exception;
+
+	/**
+	 * Called once with a Runnable that wakes up the loop; the link should
+	 * call it when data arrives so that the loop need not poll.
+	 */
+	default void setWakeup(Runnable wakeup) {
+	}
+
+	@Override
+	void close();
+}
@@ -0,0 +1,280 @@
+package to.etc.gangpro8;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes all serial ports concurrently to find the ones that have a
+ * Gangpro-8 attached, and caches the result so that later runs do not
+ * need a --serial parameter.
+ *
+ * The device has no "identify" command, so a port is a candidate when it
+ * raises CTS in response to RTS (the handshake used for every transfer). While RTS is raised the port listens briefly at
+ * each supported bit rate; if the device sends something that can only
+ * come from it at that rate (a single SOH, ACK or NAK, or an Intel Hex
+ * record with a valid checksum during an upload) the port is confirmed
+ * and the rate is remembered too. Only a single confirmed port is used
+ * when --serial is omitted.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class PortDiscovery {
+	static public final int[] BIT_RATES = {1200, 2400, 4800};
+
+	/** How long to wait for CTS after raising RTS. */
+	private static final long CTS_PROBE_TIMEOUT = 500;
+
+	/** How long to listen for data at every bit rate; long enough for a whole 16 byte record at 1200 bps. */
+	private static final long LISTEN_TIME = 1000;
+
+	private static final File CACHE_FILE = new File(System.getProperty("user.home"), ".gangpro8.properties");
+
+	/**
+	 * The result for a single port that has a Gangpro-8.
+	 */
+	static public final class Found {
+		private final String m_portName;
+
+		private final String m_description;
+
+		/** The bit rate the device was seen talking at, or 0 if it was silent. */
+		private final int m_bitRate;
+
+		public Found(String portName, String description, int bitRate) {
+			m_portName = portName;
+			m_description = description;
+			m_bitRate = bitRate;
+		}
+
+		public String getPortName() {
+			return m_portName;
+		}
+
+		public String getDescription() {
+			return m_description;
+		}
+
+		public int getBitRate() {
+			return m_bitRate;
+		}
+
+		/**
+		 * True when the device was seen talking; otherwise the port only
+		 * answered RTS with CTS, which a modem or a loopback plug does too.
+		 */
+		public boolean isConfirmed() {
+			return m_bitRate != 0;
+		}
+
+		@Override
+		public String toString() {
+			return m_portName + " " + m_description + (isConfirmed() ? " at " + m_bitRate + " bps" : " (answers RTS/CTS, but not confirmed as a Gangpro-8)");
+		}
+	}
+
+	/**
+	 * Probe all ports at the same time and return the ones with a responsive Gangpro-8.
+	 */
+	public List<Found> discover() throws Exception {
+		SerialPort[] ports = SerialPort.getCommPorts();
+		List<Found> res = new ArrayList<>();
+		if(ports.length == 0)
+			return res;
+
+		ExecutorService executor = Executors.newFixedThreadPool(ports.length);
+		try {
+			List<Future<Found>> list = new ArrayList<>();
+			for(SerialPort port : ports) {
+				list.add(executor.submit(() -> probe(port)));
+			}
+
+			long maxTime = CTS_PROBE_TIMEOUT + LISTEN_TIME * BIT_RATES.length + 2000;
+			long ets = System.currentTimeMillis() + maxTime;
+			for(int i = 0; i < list.size(); i++) {
+				Future<Found> future = list.get(i);
+				try {
+					Found found = future.get(Math.max(1, ets - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					if(null != found)
+						res.add(found);
+				} catch(Exception x) {
+					future.cancel(true);
+					System.err.println("Probing " + ports[i].getSystemPortName() + " failed: " + x);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return res;
+	}
+
+	private Found probe(SerialPort port) throws Exception {
+		port.setNumStopBits(2);
+		port.setNumDataBits(8);
+		port.setParity(SerialPort.NO_PARITY);
+		port.setBaudRate(BIT_RATES[0]);
+		port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 100, 0);
+		if(!port.openPort())
+			return null;
+		try {
+			port.setRTS();
+			if(!waitCts(port))
+				return null;
+
+			int foundRate = 0;
+			byte[] buffer = new byte[256];
+			for(int bitRate : BIT_RATES) {
+				port.setBaudRate(bitRate);
+				while(port.bytesAvailable() > 0)            // Discard whatever was received at the previous rate
+					port.readBytes(buffer, Math.min(buffer.length, port.bytesAvailable()));
+				if(isPlausible(buffer, listen(port, buffer))) {
+					foundRate = bitRate;
+					break;
+				}
+			}
+			return new Found(port.getSystemPortName(), port.getDescriptivePortName(), foundRate);
+		} finally {
+			try {
+				port.clearRTS();
+				port.closePort();
+			} catch(Exception x) {
+				//-- Ignore
+			}
+		}
+	}
+
+	private boolean waitCts(SerialPort port) throws Exception {
+		long ets = System.currentTimeMillis() + CTS_PROBE_TIMEOUT;
+		while(!port.getCTS()) {
+			if(System.currentTimeMillis() >= ets)
+				return false;
+			Thread.sleep(20);
+		}
+		return true;
+	}
+
+	/**
+	 * Collect whatever arrives during LISTEN_TIME; returns the #of bytes read.
+	 */
+	private int listen(SerialPort port, byte[] buffer) {
+		long ets = System.currentTimeMillis() + LISTEN_TIME;
+		int len = 0;
+		while(len < buffer.length && System.currentTimeMillis() < ets) {
+			int read = port.readBytes(buffer, buffer.length - len, len);
+			if(read < 0)
+				break;
+			len += read;
+		}
+		return len;
+	}
+
+	/**
+	 * Data received at the wrong bit rate is garbage, very often 0x00
+	 * because of framing errors, and single bytes of garbage can look
+	 * like anything. So the data is only accepted when it is exactly one
+	 * of the device's control bytes, or when it contains a complete Intel
+	 * Hex record with a valid checksum.
+	 */
+	static private boolean isPlausible(byte[] data, int len) {
+		if(len == 1) {
+			int c = data[0] & 0xff;
+			return c == 0x01 || c == 0x06 || c == 0x15;        // SOH, ACK, NAK
+		}
+		for(int i = 0; i < len; i++) {
+			if(data[i] == ':' && isHexRecord(data, i + 1, len))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check for a whole record (byte count, address, type, data, checksum) starting at off.
+	 */
+	static private boolean isHexRecord(byte[] data, int off, int len) {
+		int count = hexByte(data, off, len);
+		if(count < 0)
+			return false;
+		int sum = 0;
+		for(int i = 0; i < count + 5; i++) {
+			int b = hexByte(data, off + i * 2, len);
+			if(b < 0)
+				return false;
+			sum += b;
+		}
+		return (sum & 0xff) == 0;
+	}
+
+	static private int hexByte(byte[] data, int off, int len) {
+		if(off + 2 > len)
+			return -1;
+		int hi = Character.digit(data[off], 16);
+		int lo = Character.digit(data[off + 1], 16);
+		if(hi < 0 || lo < 0)
+			return -1;
+		return (hi << 4) | lo;
+	}
+
+	/*----------------------------------------------------------------------*/
+	/*	CODING:	Cache.														*/
+	/*----------------------------------------------------------------------*/
+
+	/**
+	 * Save the discovered ports so that later runs can use them without --serial.
+	 */
+	public void save(List<Found> list) throws Exception {
+		Properties p = new Properties();
+		for(int i = 0; i < list.size(); i++) {
+			Found found = list.get(i);
+			p.setProperty("port." + i, found.getPortName());
+			p.setProperty("description." + i, found.getDescription());
+			p.setProperty("bps." + i, Integer.toString(found.getBitRate()));
+		}
+		try(OutputStream os = new FileOutputStream(CACHE_FILE)) {
+			p.store(os, "Gangpro-8 ports found by --discover");
+		}
+	}
+
+	/**
+	 * Load the ports found by the last discovery, in the order they were found.
+	 */
+	public List<Found> load() {
+		List<Found> res = new ArrayList<>();
+		if(!CACHE_FILE.exists())
+			return res;
+		Properties p = new Properties();
+		try(InputStream is = new FileInputStream(CACHE_FILE)) {
+			p.load(is);
+		} catch(Exception x) {
+			System.err.println("Cannot read " + CACHE_FILE + ": " + x);
+			return res;
+		}
+		for(int i = 0; ; i++) {
+			String name = p.getProperty("port." + i);
+			if(null == name)
+				break;
+			String bps = p.getProperty("bps." + i, "0");
+			try {
+				res.add(new Found(name, p.getProperty("description." + i, ""), Integer.parseInt(bps)));
+			} catch(NumberFormatException x) {
+				res.add(new Found(name, p.getProperty("description." + i, ""), 0));
+			}
+		}
+		return res;
+	}
+
+	static public File getCacheFile() {
+		return CACHE_FILE;
+	}
+}
@@ -0,0 +1,104 @@
+package to.etc.gangpro8;
+
+import java.util.Objects;
+
+/**
+ * Describes how to talk to a single Gangpro-8: the port, its bit rate
+ * and the transfer settings. Instances are immutable; the with...()
+ * methods return a changed copy, so a job can be shared between threads
+ * and used as a template for many devices.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+final public class ProgrammerJob {
+	static public final int DEFAULT_BIT_RATE = 1200;
+
+	private final String m_portName;
+
+	private final int m_bitRate;
+
+	private final int m_passes;
+
+	private final int m_recordSize;
+
+	private final boolean m_adaptive;
+
+	private final Link.Factory m_linkFactory;
+
+	public ProgrammerJob(String portName) {
+		this(portName, DEFAULT_BIT_RATE, 1, RecordSizer.DEFAULT_SIZE, false, SerialLink.FACTORY);
+	}
+
+	private ProgrammerJob(String portName, int bitRate, int passes, int recordSize, boolean adaptive, Link.Factory linkFactory) {
+		m_portName = Objects.requireNonNull(portName);
+		m_bitRate = bitRate;
+		m_passes = passes;
+		m_recordSize = recordSize;
+		m_adaptive = adaptive;
+		m_linkFactory = Objects.requireNonNull(linkFactory);
+	}
+
+	public String getPortName() {
+		return m_portName;
+	}
+
+	public int getBitRate() {
+		return m_bitRate;
+	}
+
+	/** The #of times the master is read; more than one creates a consensus image. */
+	public int getPasses() {
+		return m_passes;
+	}
+
+	/** The #of data bytes per record when writing; the maximum size in adaptive mode. */
+	public int getRecordSize() {
+		return m_recordSize;
+	}
+
+	public boolean isAdaptive() {
+		return m_adaptive;
+	}
+
+	/** Opens the link to the device; by default the serial port. */
+	public Link.Factory getLinkFactory() {
+		return m_linkFactory;
+	}
+
+	public ProgrammerJob withPortName(String portName) {
+		return new ProgrammerJob(portName, m_bitRate, m_passes, m_recordSize, m_adaptive, m_linkFactory);
+	}
+
+	public ProgrammerJob withBitRate(int bitRate) {
+		return new ProgrammerJob(m_portName, bitRate, m_passes, m_recordSize, m_adaptive, m_linkFactory);
+	}
+
+	public ProgrammerJob withPasses(int passes) {
+		if(passes < 1 || passes > 255)
+			throw new MessageException("The number of passes must be between 1 and 255");
+		return new ProgrammerJob(m_portName, m_bitRate, passes, m_recordSize, m_adaptive, m_linkFactory);
+	}
+
+	public ProgrammerJob withRecordSize(int recordSize) {
+		if(recordSize < RecordSizer.MIN_SIZE || recordSize > RecordSizer.MAX_SIZE)
+			throw new MessageException("The record size must be between " + RecordSizer.MIN_SIZE + " and " + RecordSizer.MAX_SIZE);
+		return new ProgrammerJob(m_portName, m_bitRate, m_passes, recordSize, m_adaptive, m_linkFactory);
+	}
+
+	public ProgrammerJob withAdaptive(boolean adaptive) {
+		return new ProgrammerJob(m_portName, m_bitRate, m_passes, m_recordSize, adaptive, m_linkFactory);
+	}
+
+	/**
+	 * Use another kind of link, like an {@link EmulatedDevice} or a {@link ReplayLink}.
+	 */
+	public ProgrammerJob withLinkFactory(Link.Factory linkFactory) {
+		return new ProgrammerJob(m_portName, m_bitRate, m_passes, m_recordSize, m_adaptive, linkFactory);
+	}
+
+	@Override
+	public String toString() {
+		return m_portName + " at " + m_bitRate + " bps";
+	}
+}
@@ -0,0 +1,37 @@
+package to.etc.gangpro8;
+
+/**
+ * Receives the progress of a transfer. The methods are called on the
+ * thread running the transfer, so they should not block.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public interface ProgressListener {
+	ProgressListener NONE = new ProgressListener() {
+	};
+
+	/**
+	 * Something the operator should know or do, like "press SETUP".
+	 */
+	default void message(String message) {
+	}
+
+	/**
+	 * The #of bytes transferred so far, and the total #of bytes or -1 if not known.
+	 */
+	default void progress(long done, long total) {
+	}
+
+	/**
+	 * Called at most once when writing: when the record that ends the
+	 * image is sent for the first time, not as a retry after a NAK, so
+	 * only its acknowledgement is outstanding. A station can already ask
+	 * the operator for the next chip. Should that record still be NAKed,
+	 * message() tells the operator not to remove the chip. When the last
+	 * record is only sent as a retry this is not called; the write just
+	 * completes.
+	 */
+	default void finishing() {
+	}
+}
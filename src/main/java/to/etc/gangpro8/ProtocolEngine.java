@@ -0,0 +1,52 @@
+package to.etc.gangpro8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A push based protocol state machine. It never blocks or sleeps: it is
+ * fed the bytes received, told when CTS is raised and when its deadline
+ * has passed, and reacts by emitting bytes and RTS changes on the output.
+ * Because it knows nothing about threads or ports the same engine runs
+ * against a serial port, the emulator or a capture replay.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public interface ProtocolEngine<T> {
+	long NO_DEADLINE = Long.MAX_VALUE;
+
+	void start(long now, ProtocolOutput out) throws Exception;
+
+	/**
+	 * Process received bytes; the buffer is ready for reading.
+	 */
+	void receive(ByteBuffer data, long now, ProtocolOutput out) throws Exception;
+
+	/**
+	 * True when the engine waits for CTS; the caller then calls clearToSend() once it is raised.
+	 */
+	boolean isWaitingForCts();
+
+	void clearToSend(long now, ProtocolOutput out) throws Exception;
+
+	/**
+	 * The time at which tick() must be called, or NO_DEADLINE.
+	 */
+	long getDeadline();
+
+	/**
+	 * Called when the deadline has passed; usually fails with a timeout.
+	 */
+	void tick(long now, ProtocolOutput out) throws Exception;
+
+	/**
+	 * Called when the link has no more data.
+	 */
+	default void endOfInput() throws Exception {
+		throw new MessageException("EOF on port");
+	}
+
+	boolean isDone();
+
+	T getResult();
+}
@@ -0,0 +1,223 @@
+package to.etc.gangpro8;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs any number of protocol engines, each on its own link, on a single
+ * thread. The thread sleeps until a link signals that data has arrived,
+ * an engine's deadline passes, or (only while an engine waits for CTS,
+ * which has no event) the CTS poll interval expires.
+ *
+ * Only engine code runs on the loop thread. The futures are completed on
+ * the callback executor, so that whatever the caller chains to them
+ * cannot stall the transfers on other ports.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class ProtocolLoop implements AutoCloseable {
+	/** How often CTS is polled for engines waiting for it. */
+	static private final long CTS_POLL_INTERVAL = 10;
+
+	/** The max time to sleep when nothing is expected; links without wakeup support get polled this often. */
+	static private final long IDLE_INTERVAL = 50;
+
+	private final Queue<Session<?>> m_newSessions = new ConcurrentLinkedQueue<>();
+
+	private final List<Session<?>> m_sessions = new ArrayList<>();
+
+	private final ByteBuffer m_buffer = ByteBuffer.allocate(1024);
+
+	private final Thread m_thread;
+
+	private volatile boolean m_running = true;
+
+	private final Executor m_callbacks;
+
+	/** Set when m_callbacks was created here and must be shut down with the loop. */
+	private final ExecutorService m_ownCallbacks;
+
+	static private final class Session<T> {
+		private final Link m_link;
+
+		private final ProtocolEngine<T> m_engine;
+
+		private final CompletableFuture<T> m_future;
+
+		Session(Link link, ProtocolEngine<T> engine, CompletableFuture<T> future) {
+			m_link = link;
+			m_engine = engine;
+			m_future = future;
+		}
+
+		void complete(Executor executor) {
+			T result = m_engine.getResult();
+			executor.execute(() -> m_future.complete(result));
+		}
+	}
+
+	public ProtocolLoop() {
+		this(null);
+	}
+
+	/**
+	 * Create a loop that completes its futures on the specified executor, or
+	 * on its own (daemon) threads when null.
+	 */
+	public ProtocolLoop(Executor callbacks) {
+		if(null == callbacks) {
+			ExecutorService own = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "gangpro8-callback");
+				t.setDaemon(true);
+				return t;
+			});
+			m_ownCallbacks = own;
+			m_callbacks = own;
+		} else {
+			m_ownCallbacks = null;
+			m_callbacks = callbacks;
+		}
+		m_thread = new Thread(this::run, "gangpro8-loop");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * Run the engine on the link. The link is closed when the engine is done or fails.
+	 */
+	public <T> CompletableFuture<T> submit(Link link, ProtocolEngine<T> engine) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		synchronized(m_newSessions) {                    // So that close() cannot slip in between the check and the add
+			if(m_running) {
+				m_newSessions.add(new Session<>(link, engine, future));
+				wakeup();
+				return future;
+			}
+		}
+		link.close();
+		future.completeExceptionally(new IllegalStateException("The protocol loop has been closed"));
+		return future;
+	}
+
+	/**
+	 * The executor on which the futures are completed; use it for anything
+	 * related to the transfers that may block, like opening a port.
+	 */
+	public Executor getCallbackExecutor() {
+		return m_callbacks;
+	}
+
+	private void wakeup() {
+		LockSupport.unpark(m_thread);
+	}
+
+	@Override
+	public void close() {
+		synchronized(m_newSessions) {
+			m_running = false;
+		}
+		wakeup();
+	}
+
+	private void run() {
+		while(m_running) {
+			Session<?> session;
+			while(null != (session = m_newSessions.poll())) {
+				session.m_link.setWakeup(this::wakeup);
+				try {
+					session.m_engine.start(System.currentTimeMillis(), session.m_link);
+					m_sessions.add(session);                    // Only engines that started are serviced
+				} catch(Throwable x) {
+					fail(session, x);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			long next = now + IDLE_INTERVAL;
+			for(Iterator<Session<?>> it = m_sessions.iterator(); it.hasNext(); ) {
+				Session<?> s = it.next();
+				try {
+					long wait = service(s, now);
+					if(s.m_engine.isDone()) {
+						it.remove();
+						s.m_link.close();
+						s.complete(m_callbacks);
+					} else if(wait < next) {
+						next = wait;
+					}
+				} catch(Throwable x) {
+					it.remove();
+					fail(s, x);
+				}
+			}
+
+			long sleep = next - System.currentTimeMillis();
+			if(sleep > 0 && m_newSessions.isEmpty())
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+		}
+
+		//-- Closed: abort whatever still runs. Nothing is added to m_newSessions anymore once m_running is false.
+		m_sessions.addAll(m_newSessions);
+		for(Session<?> s : m_sessions) {
+			fail(s, new IllegalStateException("The protocol loop has been closed"));
+		}
+		ExecutorService own = m_ownCallbacks;
+		if(null != own)
+			own.shutdown();                                // Runs the completions queued above
+	}
+
+	/**
+	 * Push all input to the engine and handle its waits; return the time at which it needs attention again.
+	 */
+	private long service(Session<?> s, long now) throws Exception {
+		ProtocolEngine<?> engine = s.m_engine;
+		Link link = s.m_link;
+		boolean busy = true;
+		while(busy && !engine.isDone()) {
+			busy = false;
+			m_buffer.clear();
+			int read = link.read(m_buffer);
+			if(read < 0) {
+				engine.endOfInput();                        // Fails unless the engine can still progress without input
+			} else if(read > 0) {
+				m_buffer.flip();
+				engine.receive(m_buffer, now, link);
+				busy = true;
+			}
+
+			//-- Repeat as long as the engine makes progress, as its output may already have been answered
+			if(engine.isWaitingForCts() && link.isCts()) {
+				engine.clearToSend(now, link);
+				busy = true;
+			} else if(!engine.isDone() && engine.getDeadline() <= now) {
+				engine.tick(now, link);
+				busy = true;
+			}
+		}
+
+		long next = engine.getDeadline();
+		if(engine.isWaitingForCts())
+			next = Math.min(next, now + CTS_POLL_INTERVAL);
+		return next;
+	}
+
+	private void fail(Session<?> s, Throwable x) {
+		try {
+			s.m_link.close();
+		} catch(Exception cx) {
+			//-- Ignore, we're reporting the original error
+		}
+		m_callbacks.execute(() -> s.m_future.completeExceptionally(x));
+	}
+}
@@ -0,0 +1,18 @@
+package to.etc.gangpro8;
+
+/**
+ * The actions a protocol engine can take on its link: send bytes and
+ * change RTS.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public interface ProtocolOutput {
+	void write(byte[] data, int off, int len) throws Exception;
+
+	default void write(byte[] data) throws Exception {
+		write(data, 0, data.length);
+	}
+
+	void setRts(boolean on) throws Exception;
+}
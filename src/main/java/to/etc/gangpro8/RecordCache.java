@@ -0,0 +1,60 @@
+package to.etc.gangpro8;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An image together with its Intel Hex records, encoded once, for
+ * programming the same image into many chips. The records for the
+ * record size of the job are encoded up front; other sizes (adaptive
+ * mode, or a record shrunk after a NAK) are encoded on first use and
+ * kept as well. Instances can be used by many uploads at the same time.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+final public class RecordCache {
+	private final byte[] m_image;
+
+	private final int m_recordSize;
+
+	/** The records of m_recordSize bytes, indexed by offset / m_recordSize. */
+	private final byte[][] m_records;
+
+	/** Records of other sizes, by offset and length. */
+	private final Map<Long, byte[]> m_otherRecords = new ConcurrentHashMap<>();
+
+	public RecordCache(byte[] image, int recordSize) {
+		if(recordSize < RecordSizer.MIN_SIZE || recordSize > RecordSizer.MAX_SIZE)
+			throw new MessageException("The record size must be between " + RecordSizer.MIN_SIZE + " and " + RecordSizer.MAX_SIZE);
+		IntelHex.checkSize(image.length);
+		m_image = image;
+		m_recordSize = recordSize;
+		m_records = new byte[(image.length + recordSize - 1) / recordSize][];
+		for(int i = 0; i < m_records.length; i++) {
+			int offset = i * recordSize;
+			m_records[i] = encode(offset, Math.min(recordSize, image.length - offset));
+		}
+	}
+
+	public byte[] getImage() {
+		return m_image;
+	}
+
+	/**
+	 * Return the encoded record for len bytes at offset.
+	 */
+	public byte[] getRecord(int offset, int len) {
+		if(offset % m_recordSize == 0) {
+			int index = offset / m_recordSize;
+			if(index < m_records.length && len == Math.min(m_recordSize, m_image.length - offset))
+				return m_records[index];
+		}
+		return m_otherRecords.computeIfAbsent(((long) offset << 8) | len, k -> encode(offset, len));
+	}
+
+	private byte[] encode(int offset, int len) {
+		return IntelHex.toRecord(m_image, offset, len, offset).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,149 @@
+package to.etc.gangpro8;
+
+/**
+ * Decides how many data bytes go into the next Intel Hex record when
+ * uploading. Every record costs a full SOH, RTS/CTS, NUL NUL, ACK
+ * handshake, so larger records mean less idle time on the wire.
+ *
+ * In fixed mode the size never changes. In adaptive mode the NAK rate
+ * is measured over a window of records at the current size. A window
+ * with few NAKs doubles the size; too many NAKs go back to the size that
+ * last worked, or halve the size, but never below the starting size: a
+ * single NAK says nothing about the line. A size that failed is not
+ * tried again. The size is also not grown when the ACK latency per byte
+ * gets much worse than the best seen so far, as that means the device
+ * (or its buffer) is struggling with the larger records.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class RecordSizer {
+	static public final int MIN_SIZE = 1;
+
+	static public final int MAX_SIZE = 255;
+
+	static public final int DEFAULT_SIZE = 16;
+
+	/** The #of records (sent at the same size) over which the NAK rate is measured. */
+	static private final int WINDOW = 16;
+
+	/** The max #of NAKs in a window for the size to grow. */
+	static private final int GROW_NAKS = WINDOW / 8;
+
+	/** More NAKs than this in a window make the size shrink. */
+	static private final int SHRINK_NAKS = WINDOW / 4;
+
+	private final int m_maxSize;
+
+	private final boolean m_adaptive;
+
+	/** The size to start with, which is also the smallest size used when adaptive. */
+	private final int m_minSize;
+
+	private int m_size;
+
+	/** The largest size that completed a window with few NAKs. */
+	private int m_goodSize;
+
+	/** The smallest size that had too many NAKs; the size is not grown up to it again. */
+	private int m_badSize;
+
+	/** The #of records and NAKs at the current size in the current window. */
+	private int m_windowRecords;
+
+	private int m_windowNaks;
+
+	/** True when a record in the window was acknowledged much slower than usual. */
+	private boolean m_windowSlow;
+
+	/** The best ACK latency per data byte seen, in ms. */
+	private double m_bestLatency = Double.MAX_VALUE;
+
+	private int m_records;
+
+	private int m_naks;
+
+	public RecordSizer(int size, boolean adaptive) {
+		if(size < MIN_SIZE || size > MAX_SIZE)
+			throw new MessageException("The record size must be between " + MIN_SIZE + " and " + MAX_SIZE);
+		m_maxSize = size;
+		m_adaptive = adaptive;
+		m_size = adaptive ? Math.min(size, DEFAULT_SIZE) : size;
+		m_minSize = m_size;
+		m_goodSize = m_size;
+		m_badSize = size + 1;
+	}
+
+	/**
+	 * The #of data bytes to put in the next record.
+	 */
+	public int getSize() {
+		return m_size;
+	}
+
+	/**
+	 * The device acknowledged a record of the specified size after latency ms.
+	 */
+	public void ack(int size, long latency) {
+		m_records++;
+		if(!m_adaptive)
+			return;
+		double perByte = (double) latency / size;
+		if(perByte < m_bestLatency)
+			m_bestLatency = perByte;
+		if(perByte > m_bestLatency * 2)
+			m_windowSlow = true;
+		m_windowRecords++;
+		evaluate();
+	}
+
+	/**
+	 * The device rejected a record.
+	 */
+	public void nak() {
+		m_naks++;
+		if(!m_adaptive)
+			return;
+		m_windowRecords++;
+		m_windowNaks++;
+		evaluate();
+	}
+
+	/**
+	 * Change the size when the window shows the line can do better, or is clearly doing worse.
+	 */
+	private void evaluate() {
+		if(m_windowNaks > SHRINK_NAKS) {
+			m_badSize = m_size;
+			if(m_goodSize < m_size)
+				m_size = m_goodSize;
+			else
+				m_size = Math.max(m_minSize, m_size / 2);
+			m_goodSize = Math.min(m_goodSize, m_size);
+			startWindow();
+			return;
+		}
+		if(m_windowRecords < WINDOW)
+			return;
+		if(m_windowNaks <= GROW_NAKS) {
+			m_goodSize = Math.max(m_goodSize, m_size);
+			if(!m_windowSlow)
+				m_size = Math.max(m_size, Math.min(m_size * 2, Math.min(m_maxSize, m_badSize - 1)));
+		}
+		startWindow();
+	}
+
+	private void startWindow() {
+		m_windowRecords = 0;
+		m_windowNaks = 0;
+		m_windowSlow = false;
+	}
+
+	public int getRecordCount() {
+		return m_records;
+	}
+
+	public int getNakCount() {
+		return m_naks;
+	}
+}
@@ -0,0 +1,75 @@
+package to.etc.gangpro8;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Replays the bytes received in an earlier session (see {@link CaptureLink})
+ * so that a problem with a device can be reproduced without it. Everything
+ * sent is collected and can be inspected; CTS is always raised.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class ReplayLink implements Link {
+	/** The max #of bytes returned by a single read, to mimic a serial port. */
+	static private final int CHUNK_SIZE = 64;
+
+	private final String m_name;
+
+	private final byte[] m_capture;
+
+	private int m_position;
+
+	private final ByteArrayOutputStream m_written = new ByteArrayOutputStream();
+
+	public ReplayLink(String name, byte[] capture) {
+		m_name = name;
+		m_capture = capture;
+	}
+
+	@Override
+	public String getName() {
+		return m_name;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer buffer) {
+		if(m_position >= m_capture.length)
+			return -1;
+		int count = Math.min(Math.min(CHUNK_SIZE, buffer.remaining()), m_capture.length - m_position);
+		buffer.put(m_capture, m_position, count);
+		m_position += count;
+		return count;
+	}
+
+	@Override
+	public synchronized void write(byte[] data, int off, int len) {
+		m_written.write(data, off, len);
+	}
+
+	/**
+	 * Everything the engine sent.
+	 */
+	public synchronized byte[] getWritten() {
+		return m_written.toByteArray();
+	}
+
+	@Override
+	public void setRts(boolean on) {
+	}
+
+	@Override
+	public boolean isCts() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return "replay of " + m_name;
+	}
+}
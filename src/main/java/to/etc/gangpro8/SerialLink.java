@@ -0,0 +1,122 @@
+package to.etc.gangpro8;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import com.fazecast.jSerialComm.SerialPortInvalidPortException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * A link to a Gangpro-8 on a serial port, used in non-blocking mode.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 06-06-21.
+ */
+final public class SerialLink implements Link {
+	static public final Link.Factory FACTORY = SerialLink::open;
+
+	private final SerialPort m_port;
+
+	private final String m_name;
+
+	private SerialLink(SerialPort port, String name) {
+		m_port = port;
+		m_name = name;
+	}
+
+	/**
+	 * Open serial port for use.
+	 */
+	static public SerialLink open(ProgrammerJob job) {
+		try {
+			SerialPort port = SerialPort.getCommPort(job.getPortName());
+			port.setBaudRate(job.getBitRate());
+			port.setNumStopBits(2);
+			port.setNumDataBits(8);
+			port.setParity(SerialPort.NO_PARITY);
+			//port.setFlowControl(SerialPort.FLOW_CONTROL_CTS_ENABLED | SerialPort.FLOW_CONTROL_RTS_ENABLED);
+			port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+			if(!port.openPort())
+				throw new MessageException("Cannot open " + job.getPortName());
+			return new SerialLink(port, job.getPortName());
+		} catch(SerialPortInvalidPortException spx) {
+			throw new MessageException(spx.getMessage() + "\nAvailable ports are: " + listPorts());
+		}
+	}
+
+	/**
+	 * The serial ports on this system, one per line, for error messages.
+	 */
+	static public String listPorts() {
+		return Arrays.stream(SerialPort.getCommPorts())
+			.map(a -> "- " + a.getSystemPortName() + " " +  a.getDescriptivePortName() + "\n")
+			.collect(Collectors.joining());
+	}
+
+	@Override
+	public String getName() {
+		return m_name;
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) {
+		int read = m_port.readBytes(buffer.array(), buffer.remaining(), buffer.arrayOffset() + buffer.position());
+		if(read < 0)
+			throw new MessageException("Error reading from " + m_name);
+		buffer.position(buffer.position() + read);
+		return read;
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) {
+		while(len > 0) {
+			int written = m_port.writeBytes(data, len, off);
+			if(written < 0)
+				throw new MessageException("Error writing to " + m_name);
+			off += written;
+			len -= written;
+		}
+	}
+
+	@Override
+	public void setRts(boolean on) {
+		if(on)
+			m_port.setRTS();
+		else
+			m_port.clearRTS();
+	}
+
+	@Override
+	public boolean isCts() {
+		return m_port.getCTS();
+	}
+
+	@Override
+	public void setWakeup(Runnable wakeup) {
+		m_port.addDataListener(new SerialPortDataListener() {
+			@Override
+			public int getListeningEvents() {
+				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+			}
+
+			@Override
+			public void serialEvent(SerialPortEvent event) {
+				wakeup.run();
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		m_port.removeDataListener();
+		m_port.closePort();
+	}
+
+	@Override
+	public String toString() {
+		return m_name;
+	}
+}
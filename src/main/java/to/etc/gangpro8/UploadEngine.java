@@ -0,0 +1,299 @@
+package to.etc.gangpro8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sends an image to the programmer. For every record the device asks
+ * with SOH; we then raise RTS, wait for CTS, send NUL NUL, wait for CTS
+ * again, send the record, drop RTS and wait for ACK or NAK. Each of those
+ * waits is a state, so nothing here blocks.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 06-06-21.
+ */
+final public class UploadEngine implements ProtocolEngine<GangPro8Programmer.WriteResult> {
+	private static final long SOH_TIMEOUT = 10 * 1000;
+
+	private static final long ACK_TIMEOUT = 10 * 1000;
+
+	private static final long CTS_TIMEOUT = 5 * 1000;
+
+	/** The delay before resending a record that was NAKed. */
+	private static final long NAK_DELAY = 10;
+
+	static private final byte[] NULNUL = new byte[]{0x0, 0x0};
+
+	private enum State {
+		WaitSoh,
+		WaitCtsForNul,
+		WaitCtsForRecord,
+		WaitAck,
+		NakDelay,
+		Done
+	}
+
+	private final ImageSource m_data;
+
+	private final ProgressListener m_listener;
+
+	private final RecordSizer m_sizer;
+
+	/** When set, the pre-encoded records of the image that m_data reads. */
+	private final RecordCache m_cache;
+
+	private State m_state = State.WaitSoh;
+
+	private long m_deadline = NO_DEADLINE;
+
+	/** Bytes read from the source but not yet acknowledged. */
+	private final byte[] m_buffer = new byte[RecordSizer.MAX_SIZE];
+
+	private int m_have;
+
+	/** The address of the first byte in m_buffer. */
+	private int m_offset;
+
+	/** The #of bytes in the record being sent. */
+	private int m_recordLength;
+
+	private byte[] m_record = new byte[0];
+
+	private long m_recordSentAt;
+
+	/** True when the record being sent is a retry of a NAKed one. */
+	private boolean m_retry;
+
+	/** Set once the listener has been told that the last record is out. */
+	private boolean m_finishing;
+
+	private int m_badSohMessageCount;
+
+	/**
+	 * Input received while busy with the handshake. A replay (or a fast
+	 * device) can deliver the answers to the next steps before the engine
+	 * has taken them; they are kept until the engine waits for input.
+	 */
+	private byte[] m_input = new byte[256];
+
+	private int m_inputIndex;
+
+	private int m_inputLength;
+
+	private GangPro8Programmer.WriteResult m_result;
+
+	public UploadEngine(ProgrammerJob job, ImageSource data, ProgressListener listener) {
+		this(job, data, null, listener);
+	}
+
+	/**
+	 * Send an image whose records have already been encoded.
+	 */
+	public UploadEngine(ProgrammerJob job, RecordCache cache, ProgressListener listener) {
+		this(job, ImageTransforms.wrap(cache.getImage()), cache, listener);
+	}
+
+	private UploadEngine(ProgrammerJob job, ImageSource data, RecordCache cache, ProgressListener listener) {
+		IntelHex.checkSize(data.size());
+		m_data = data;
+		m_cache = cache;
+		m_listener = listener;
+		m_sizer = new RecordSizer(job.getRecordSize(), job.isAdaptive());
+	}
+
+	@Override
+	public void start(long now, ProtocolOutput out) throws Exception {
+		m_listener.message("Asking GangPro to enter programming mode..");
+		out.write("T".getBytes(StandardCharsets.UTF_8));        // PROGRAM mode
+		nextRecord(now, out);
+	}
+
+	/**
+	 * Read the data for the next record, and wait for the device to ask for it.
+	 */
+	private void nextRecord(long now, ProtocolOutput out) throws Exception {
+		int size = m_sizer.getSize();
+		if(m_have < size) {
+			//-- Records are encoded straight from the (transformed) source as they are sent.
+			int read = m_data.readFully(m_buffer, m_have, size - m_have);
+			if(read > 0)
+				m_have += read;
+		}
+		if(m_have == 0) {
+			out.setRts(true);
+			m_result = new GangPro8Programmer.WriteResult(m_offset, m_sizer.getRecordCount(), m_sizer.getNakCount());
+			enter(State.Done, NO_DEADLINE);
+			return;
+		}
+		enter(State.WaitSoh, now + SOH_TIMEOUT);
+	}
+
+	/**
+	 * Encode the record (again: its size may have been reduced after a NAK) and start the handshake.
+	 */
+	private void sendRecord(long now, ProtocolOutput out) throws Exception {
+		m_recordLength = Math.min(m_sizer.getSize(), m_have);
+		RecordCache cache = m_cache;
+		if(null != cache)
+			m_record = cache.getRecord(m_offset, m_recordLength);
+		else
+			m_record = IntelHex.toRecord(m_buffer, 0, m_recordLength, m_offset).getBytes(StandardCharsets.UTF_8);
+		out.setRts(true);
+		enter(State.WaitCtsForNul, now + CTS_TIMEOUT);
+	}
+
+	@Override
+	public void receive(ByteBuffer data, long now, ProtocolOutput out) throws Exception {
+		int len = data.remaining();
+		if(m_inputIndex > 0) {
+			System.arraycopy(m_input, m_inputIndex, m_input, 0, m_inputLength - m_inputIndex);
+			m_inputLength -= m_inputIndex;
+			m_inputIndex = 0;
+		}
+		if(m_inputLength + len > m_input.length)
+			m_input = Arrays.copyOf(m_input, Math.max(m_input.length * 2, m_inputLength + len));
+		data.get(m_input, m_inputLength, len);
+		m_inputLength += len;
+		processInput(now, out);
+	}
+
+	/**
+	 * Handle the input kept for as long as the engine waits for input.
+	 */
+	private void processInput(long now, ProtocolOutput out) throws Exception {
+		while(m_inputIndex < m_inputLength) {
+			int c;
+			switch(m_state){
+				default:
+					return;                                    // Busy with the handshake: keep the rest
+
+				case Done:
+					m_inputIndex = m_inputLength;            // The device asks for another record after the last ACK
+					return;
+
+				case WaitSoh:
+					c = m_input[m_inputIndex++] & 0xff;
+					if(c == 0x01)                                // Got the SOH (ascii 0x01)?
+						sendRecord(now, out);
+					else
+						unexpected(c, "while waiting for SOH");
+					break;
+
+				case WaitAck:
+					c = m_input[m_inputIndex++] & 0xff;
+					if(c == 0x06) {                                // ACK?
+						m_retry = false;
+						m_sizer.ack(m_recordLength, now - m_recordSentAt);
+						m_offset += m_recordLength;
+						m_have -= m_recordLength;
+						System.arraycopy(m_buffer, m_recordLength, m_buffer, 0, m_have);
+						m_listener.progress(m_offset, m_data.size());
+						nextRecord(now, out);
+					} else if(c == 0x15) {                        // NAK?
+						m_retry = true;
+						if(m_finishing)
+							m_listener.message("The device rejected the last record; retrying it, do not remove the chip yet");
+						m_sizer.nak();
+						enter(State.NakDelay, now + NAK_DELAY);
+					} else {
+						unexpected(c, "while waiting for ACK/NAK");
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * A replay has ended. That is only an error when the engine needs input,
+	 * not while it still has handshake steps to take on what it received.
+	 */
+	@Override
+	public void endOfInput() throws Exception {
+		if(m_state == State.WaitSoh || m_state == State.WaitAck)
+			throw new MessageException("EOF on port");
+	}
+
+	private void unexpected(int c, String what) {
+		if(m_badSohMessageCount < 5) {
+			m_badSohMessageCount++;
+			m_listener.message("Unexpected char " + Integer.toHexString(c) + " " + what);
+		}
+	}
+
+	@Override
+	public boolean isWaitingForCts() {
+		return m_state == State.WaitCtsForNul || m_state == State.WaitCtsForRecord;
+	}
+
+	@Override
+	public void clearToSend(long now, ProtocolOutput out) throws Exception {
+		switch(m_state){
+			default:
+				throw new IllegalStateException("Not waiting for CTS in state " + m_state);
+
+			case WaitCtsForNul:
+				out.write(NULNUL);
+				enter(State.WaitCtsForRecord, now + CTS_TIMEOUT);
+				break;
+
+			case WaitCtsForRecord:
+				out.write(m_record);
+				out.setRts(false);
+				m_recordSentAt = now;
+				enter(State.WaitAck, now + ACK_TIMEOUT);
+				if(!m_finishing && !m_retry && m_offset + m_recordLength >= m_data.size()) {
+					//-- Only a first try: after a NAK the line is bad, so wait for the ACK instead
+					m_finishing = true;
+					m_listener.finishing();
+				}
+				processInput(now, out);
+				break;
+		}
+	}
+
+	@Override
+	public long getDeadline() {
+		return m_deadline;
+	}
+
+	@Override
+	public void tick(long now, ProtocolOutput out) throws Exception {
+		switch(m_state){
+			default:
+				return;
+
+			case WaitSoh:
+				throw new MessageException("Timeout waiting for SOH (new record request) from GangPro");
+
+			case WaitCtsForNul:
+			case WaitCtsForRecord:
+				throw new MessageException("Timeout waiting for CTS to clear");
+
+			case WaitAck:
+				throw new MessageException("Timeout waiting for ACK/NAK from GangPro");
+
+			case NakDelay:
+				sendRecord(now, out);
+				break;
+		}
+	}
+
+	private void enter(State state, long deadline) {
+		m_state = state;
+		m_deadline = deadline;
+	}
+
+	@Override
+	public boolean isDone() {
+		return m_state == State.Done;
+	}
+
+	@Override
+	public GangPro8Programmer.WriteResult getResult() {
+		GangPro8Programmer.WriteResult result = m_result;
+		if(null == result)
+			throw new IllegalStateException("Upload not complete");
+		return result;
+	}
+}
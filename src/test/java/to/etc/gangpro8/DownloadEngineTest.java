@@ -0,0 +1,111 @@
+package to.etc.gangpro8;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class DownloadEngineTest {
+	static private final ProtocolOutput NO_OUTPUT = new ProtocolOutput() {
+		@Override
+		public void write(byte[] data, int off, int len) {
+		}
+
+		@Override
+		public void setRts(boolean on) {
+		}
+	};
+
+	static byte[] image(int size) {
+		byte[] data = new byte[size];
+		for(int i = 0; i < size; i++)
+			data[i] = (byte) (i * 7 + 3);
+		return data;
+	}
+
+	/**
+	 * The Intel Hex the device sends for the image, with the record at badRecord (or none if -1) damaged.
+	 */
+	static String hex(byte[] image, int badRecord) {
+		StringBuilder sb = new StringBuilder();
+		for(int off = 0, rec = 0; off < image.length; off += 16, rec++) {
+			String record = IntelHex.toRecord(image, off, Math.min(16, image.length - off), off);
+			if(rec == badRecord)
+				record = record.substring(0, record.length() - 2) + (record.endsWith("00") ? "01" : "00");
+			sb.append(record).append("\r\n");
+		}
+		sb.append(IntelHex.EOF_RECORD).append("\r\n");
+		return sb.toString();
+	}
+
+	static GangPro8Programmer.ReadResult run(int passes, String... streams) throws Exception {
+		DownloadEngine engine = new DownloadEngine(new ProgrammerJob("test").withPasses(passes), ProgressListener.NONE);
+		engine.start(0, NO_OUTPUT);
+		for(String stream : streams) {
+			engine.receive(ByteBuffer.wrap(stream.getBytes(StandardCharsets.US_ASCII)), 0, NO_OUTPUT);
+		}
+		assertTrue(engine.isDone());
+		return engine.getResult();
+	}
+
+	@Test
+	public void testSinglePass() throws Exception {
+		byte[] image = image(100);
+		GangPro8Programmer.ReadResult result = run(1, hex(image, -1));
+		assertArrayEquals(image, result.getImage());
+		assertEquals(1, result.getPasses());
+	}
+
+	@Test
+	public void testDroppedRecordIsFilledByOtherPasses() throws Exception {
+		byte[] image = image(100);
+		GangPro8Programmer.ReadResult result = run(3, hex(image, 2), hex(image, -1), hex(image, 4));
+		assertArrayEquals(image, result.getImage());
+		assertEquals(3, result.getPasses());
+		assertEquals(2, result.getDroppedRecords());
+		assertEquals(0, result.getMissingCount());
+		for(ConsensusImage.UnstableAddress ua : result.getUnstableAddresses()) {
+			assertEquals(0, ua.getUnstableBits());
+			assertEquals(image[ua.getAddress()] & 0xff, ua.getValue());
+			assertEquals(2, ua.getVotes());
+		}
+	}
+
+	@Test
+	public void testRecordDroppedInAllPassesIsMissing() throws Exception {
+		byte[] image = image(64);
+		GangPro8Programmer.ReadResult result = run(3, hex(image, 1), hex(image, 1), hex(image, 1));
+		assertEquals(16, result.getMissingCount());
+		byte[] read = result.getImage();
+		assertEquals(image.length, read.length);
+		for(ConsensusImage.UnstableAddress ua : result.getUnstableAddresses()) {
+			assertTrue(ua.isMissing());
+			assertFalse(ua.isTied());
+			assertEquals(read[ua.getAddress()] & 0xff, ua.getValue());
+			assertTrue(ua.getAddress() >= 16 && ua.getAddress() < 32);
+		}
+	}
+
+	@Test
+	public void testFlippedBitUsesMajority() throws Exception {
+		byte[] image = image(32);
+		byte[] flipped = image.clone();
+		flipped[5] ^= 0x10;
+		GangPro8Programmer.ReadResult result = run(3, hex(flipped, -1), hex(image, -1), hex(image, -1));
+		assertArrayEquals(image, result.getImage());
+		List<ConsensusImage.UnstableAddress> list = result.getUnstableAddresses();
+		assertEquals(1, list.size());
+		assertEquals(5, list.get(0).getAddress());
+		assertEquals(0x10, list.get(0).getUnstableBits());
+	}
+}
@@ -0,0 +1,132 @@
+package to.etc.gangpro8;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class ImageTransformsTest {
+	/** Read sizes used to read each result, so that odd reads split the swapped pairs. */
+	static private final int[] CHUNKS = {1, 2, 3, 5, 64};
+
+	static private byte[] data(int size) {
+		byte[] data = new byte[size];
+		for(int i = 0; i < size; i++)
+			data[i] = (byte) i;
+		return data;
+	}
+
+	/**
+	 * The expected result of swap: every pair swapped, a last odd byte kept as is.
+	 */
+	static private byte[] swapped(byte[] data) {
+		byte[] res = data.clone();
+		for(int i = 0; i + 1 < res.length; i += 2) {
+			res[i] = data[i + 1];
+			res[i + 1] = data[i];
+		}
+		return res;
+	}
+
+	static private byte[] readAll(ImageSource source, int chunk) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[chunk];
+		int read;
+		while((read = source.read(buf, 0, chunk)) >= 0)
+			baos.write(buf, 0, read);
+		source.close();
+		return baos.toByteArray();
+	}
+
+	static private void check(byte[] expected, byte[] data, String spec) throws IOException {
+		for(int chunk : CHUNKS) {
+			ImageSource source = ImageTransforms.apply(ImageTransforms.wrap(data), spec);
+			assertEquals(expected.length, source.size(), spec);
+			assertArrayEquals(expected, readAll(source, chunk), spec + " read in chunks of " + chunk);
+		}
+	}
+
+	@Test
+	public void testSwap() throws IOException {
+		check(swapped(data(8)), data(8), "swap");
+		check(swapped(data(7)), data(7), "swap");
+		check(data(7), data(7), "swap,swap");
+	}
+
+	@Test
+	public void testExtractThenSwap() throws IOException {
+		byte[] data = data(10);
+		check(swapped(Arrays.copyOfRange(data, 1, 10)), data, "extract:1,swap");
+		check(swapped(Arrays.copyOfRange(data, 3, 8)), data, "extract:3:5,swap");
+		check(swapped(Arrays.copyOfRange(data, 3, 10)), data, "offset:-3,swap");
+	}
+
+	/**
+	 * Extracting from an odd position in swapped data skips half a pair.
+	 */
+	@Test
+	public void testSwapThenExtract() throws IOException {
+		byte[] data = data(11);
+		byte[] swapped = swapped(data);
+		check(Arrays.copyOfRange(swapped, 1, 11), data, "swap,extract:1");
+		check(Arrays.copyOfRange(swapped, 3, 8), data, "swap,extract:3:5");
+		check(Arrays.copyOfRange(swapped, 3, 11), data, "swap,offset:-3");
+	}
+
+	@Test
+	public void testFillAndOffset() throws IOException {
+		byte[] data = data(5);
+		byte[] filled = Arrays.copyOf(data, 8);
+		Arrays.fill(filled, 5, 8, (byte) 0xff);
+		check(filled, data, "fill:8");
+		check(swapped(filled), data, "fill:8,swap");
+
+		byte[] moved = new byte[7];
+		System.arraycopy(data, 0, moved, 2, 5);
+		check(moved, data, "offset:2:0");
+	}
+
+	@Test
+	public void testCatWithColonInName(@TempDir File dir) throws IOException {
+		File file = new File(dir, "bank:1.bin");
+		Files.write(file.toPath(), new byte[] {(byte) 0xaa, (byte) 0xbb});
+		byte[] expected = {0, 1, 2, (byte) 0xaa, (byte) 0xbb};
+		check(expected, data(3), "cat:" + file.getPath());
+	}
+
+	@Test
+	public void testInvalidSpecClosesSource() {
+		boolean[] closed = new boolean[1];
+		ImageSource source = new ImageSource() {
+			@Override
+			public long size() {
+				return 4;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) {
+				return -1;
+			}
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		assertThrows(MessageException.class, () -> ImageTransforms.apply(source, "swap,extract:x"));
+		assertTrue(closed[0]);
+	}
+}
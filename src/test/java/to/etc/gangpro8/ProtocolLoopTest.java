@@ -0,0 +1,109 @@
+package to.etc.gangpro8;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class ProtocolLoopTest {
+	static private final long TIMEOUT = 30;
+
+	/**
+	 * A link that cannot be written to, like a port that was unplugged.
+	 */
+	static private final class BrokenLink implements Link {
+		private final AtomicBoolean m_closed = new AtomicBoolean();
+
+		@Override
+		public String getName() {
+			return "broken";
+		}
+
+		@Override
+		public int read(ByteBuffer buffer) {
+			return 0;
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) {
+			throw new MessageException("write failed");
+		}
+
+		@Override
+		public void setRts(boolean on) {
+		}
+
+		@Override
+		public boolean isCts() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			m_closed.set(true);
+		}
+
+		boolean isClosed() {
+			return m_closed.get();
+		}
+	}
+
+	static private Throwable failure(CompletableFuture<?> future) {
+		ExecutionException x = assertThrows(ExecutionException.class, () -> future.get(TIMEOUT, TimeUnit.SECONDS));
+		Throwable cause = x.getCause();
+		return cause == null ? x : cause;
+	}
+
+	/**
+	 * An engine that fails in start() is reported, and its link closed, every time.
+	 */
+	@Test
+	public void testStartFailure() throws Exception {
+		try(ProtocolLoop loop = new ProtocolLoop()) {
+			for(int i = 0; i < 100; i++) {
+				BrokenLink link = new BrokenLink();
+				ProtocolEngine<GangPro8Programmer.WriteResult> engine = new UploadEngine(new ProgrammerJob("test"), ImageTransforms.wrap(new byte[10]), ProgressListener.NONE);
+				Throwable x = failure(loop.submit(link, engine));
+				assertTrue(x instanceof MessageException, x.toString());
+				assertEquals("write failed", x.getMessage());
+				assertTrue(link.isClosed());
+			}
+		}
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		ProtocolLoop loop = new ProtocolLoop();
+		loop.close();
+		BrokenLink link = new BrokenLink();
+		CompletableFuture<GangPro8Programmer.ReadResult> future = loop.submit(link, new DownloadEngine(new ProgrammerJob("test"), ProgressListener.NONE));
+		assertTrue(failure(future) instanceof IllegalStateException);
+		assertTrue(link.isClosed());
+	}
+
+	/**
+	 * Code chained to the futures must not run on the loop thread.
+	 */
+	@Test
+	public void testCompletedOutsideLoop() throws Exception {
+		byte[] image = DownloadEngineTest.image(100);
+		try(ProtocolLoop loop = new ProtocolLoop()) {
+			EmulatedDevice device = new EmulatedDevice("test", image);
+			CompletableFuture<String> thread = loop.submit(device, new DownloadEngine(new ProgrammerJob("test"), ProgressListener.NONE))
+				.thenApply(r -> Thread.currentThread().getName());
+			assertNotEquals("gangpro8-loop", thread.get(TIMEOUT, TimeUnit.SECONDS));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package to.etc.gangpro8;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class RecordSizerTest {
+	static private void acks(RecordSizer sizer, int count) {
+		for(int i = 0; i < count; i++)
+			sizer.ack(sizer.getSize(), 10L * sizer.getSize());
+	}
+
+	static private void naks(RecordSizer sizer, int count) {
+		for(int i = 0; i < count; i++)
+			sizer.nak();
+	}
+
+	@Test
+	public void testFixedSizeNeverChanges() {
+		RecordSizer sizer = new RecordSizer(32, false);
+		acks(sizer, 100);
+		assertEquals(32, sizer.getSize());
+		naks(sizer, 100);
+		assertEquals(32, sizer.getSize());
+		assertEquals(200, sizer.getRecordCount() + sizer.getNakCount());
+	}
+
+	@Test
+	public void testGrowsAfterCleanWindow() {
+		RecordSizer sizer = new RecordSizer(64, true);
+		assertEquals(RecordSizer.DEFAULT_SIZE, sizer.getSize());
+		acks(sizer, 15);
+		assertEquals(16, sizer.getSize());
+		acks(sizer, 1);
+		assertEquals(32, sizer.getSize());
+		acks(sizer, 16);
+		assertEquals(64, sizer.getSize());
+		acks(sizer, 16);
+		assertEquals(64, sizer.getSize());		// Never above the requested size
+	}
+
+	@Test
+	public void testFewNaksStillGrow() {
+		RecordSizer sizer = new RecordSizer(64, true);
+		naks(sizer, 2);
+		acks(sizer, 14);
+		assertEquals(32, sizer.getSize());
+	}
+
+	@Test
+	public void testSomeNaksKeepSize() {
+		RecordSizer sizer = new RecordSizer(64, true);
+		acks(sizer, 16);
+		assertEquals(32, sizer.getSize());
+		naks(sizer, 3);
+		acks(sizer, 13);
+		assertEquals(32, sizer.getSize());
+	}
+
+	@Test
+	public void testShrinksAndDoesNotRetryBadSize() {
+		RecordSizer sizer = new RecordSizer(64, true);
+		acks(sizer, 16);
+		assertEquals(32, sizer.getSize());
+		naks(sizer, 5);
+		assertEquals(16, sizer.getSize());		// Back to the last size that worked
+
+		for(int i = 0; i < 10; i++) {
+			acks(sizer, 16);
+			assertTrue(sizer.getSize() < 32, "32 was bad, yet it was tried again");
+		}
+	}
+
+	@Test
+	public void testNeverBelowFloor() {
+		RecordSizer sizer = new RecordSizer(64, true);
+		for(int i = 0; i < 10; i++)
+			naks(sizer, 5);
+		assertEquals(16, sizer.getSize());
+
+		sizer = new RecordSizer(4, true);
+		for(int i = 0; i < 10; i++)
+			naks(sizer, 5);
+		assertEquals(4, sizer.getSize());
+	}
+
+	@Test
+	public void testBadSize() {
+		assertThrows(MessageException.class, () -> new RecordSizer(0, true));
+		assertThrows(MessageException.class, () -> new RecordSizer(256, false));
+	}
+}
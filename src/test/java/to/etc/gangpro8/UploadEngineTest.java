@@ -0,0 +1,86 @@
+package to.etc.gangpro8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ * Created on 19-10-26.
+ */
+public class UploadEngineTest {
+	static private final long TIMEOUT = 30;
+
+	static private GangPro8Programmer.WriteResult write(GangPro8Programmer programmer, Link link, byte[] image, ProgressListener listener) throws Exception {
+		ProgrammerJob job = new ProgrammerJob("test").withLinkFactory(j -> link);
+		return programmer.write(job, ImageTransforms.wrap(image), listener).get(TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		byte[] image = DownloadEngineTest.image(1000);
+		EmulatedDevice device = new EmulatedDevice("test", new byte[0]);
+		try(GangPro8Programmer programmer = new GangPro8Programmer()) {
+			GangPro8Programmer.WriteResult result = write(programmer, device, image, ProgressListener.NONE);
+			assertArrayEquals(image, device.getProgrammed());
+			assertEquals(1000, result.getBytes());
+			assertEquals(0, result.getNaks());
+		}
+	}
+
+	@Test
+	public void testNakIsRetried() throws Exception {
+		byte[] image = DownloadEngineTest.image(1000);
+		EmulatedDevice device = new EmulatedDevice("test", new byte[0]);
+		device.setNakEvery(3);
+		List<String> events = new ArrayList<>();
+		ProgressListener listener = new ProgressListener() {
+			@Override
+			public void finishing() {
+				events.add("finishing");
+			}
+		};
+		try(GangPro8Programmer programmer = new GangPro8Programmer()) {
+			GangPro8Programmer.WriteResult result = write(programmer, device, image, listener);
+			assertArrayEquals(image, device.getProgrammed());
+			assertEquals(1000, result.getBytes());
+			assertTrue(result.getNaks() > 0);
+		}
+		assertEquals(1, events.size());
+	}
+
+	/**
+	 * A capture of an upload with NAKs replays to the same result, sending exactly the same bytes.
+	 */
+	@Test
+	public void testCaptureReplays() throws Exception {
+		byte[] image = DownloadEngineTest.image(1000);
+		EmulatedDevice device = new EmulatedDevice("test", new byte[0]);
+		device.setNakEvery(5);
+		ByteArrayOutputStream capture = new ByteArrayOutputStream();
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		Link recorder = new CaptureLink(device, capture) {
+			@Override
+			public void write(byte[] data, int off, int len) throws Exception {
+				sent.write(data, off, len);
+				super.write(data, off, len);
+			}
+		};
+		try(GangPro8Programmer programmer = new GangPro8Programmer()) {
+			GangPro8Programmer.WriteResult original = write(programmer, recorder, image, ProgressListener.NONE);
+			assertTrue(original.getNaks() > 0);
+
+			ReplayLink replay = new ReplayLink("replay", capture.toByteArray());
+			GangPro8Programmer.WriteResult replayed = write(programmer, replay, image, ProgressListener.NONE);
+			assertEquals(original.toString(), replayed.toString());
+			assertArrayEquals(sent.toByteArray(), replay.getWritten());
+		}
+	}
+}